@@ -27,6 +27,7 @@ import io.fdeitylink.util.decoded
 import io.fdeitylink.util.Logger
 
 import io.fdeitylink.util.fx.FXUtil
+import io.fdeitylink.util.fx.UndoHistory
 
 import io.fdeitylink.keroedit.map.Layer
 
@@ -55,6 +56,9 @@ internal object Config {
 
     var tilesetStageShowing: Boolean by Delegates.notNull()
 
+    var undoMemoryBudget: Long by Delegates.notNull()
+    lateinit var undoOverflowPolicy: UndoHistory.OverflowPolicy
+
     private val prefs = Preferences.userNodeForPackage(javaClass)
 
     private const val LICENSE_READ = "LICENSE_READ"
@@ -69,6 +73,8 @@ internal object Config {
     private const val VIEW_SETTINGS = "VIEW_SETTINGS"
     private const val EDIT_MODE = "EDIT_MODE"
     private const val TILESET_STAGE_SHOWING = "TILESET_STAGE_SHOWING"
+    private const val UNDO_MEMORY_BUDGET = "UNDO_MEMORY_BUDGET"
+    private const val UNDO_OVERFLOW_POLICY = "UNDO_OVERFLOW_POLICY"
 
     fun load() {
         licenseRead = prefs.getBoolean(LICENSE_READ, false)
@@ -101,6 +107,10 @@ internal object Config {
         editMode = MapEditTab.EditMode.values()[prefs.getInt(EDIT_MODE, 0)]
 
         tilesetStageShowing = prefs.getBoolean(TILESET_STAGE_SHOWING, false)
+
+        //shared by the undo history of every open tab
+        undoMemoryBudget = prefs.getLong(UNDO_MEMORY_BUDGET, Runtime.getRuntime().maxMemory() / 4)
+        undoOverflowPolicy = UndoHistory.OverflowPolicy.values()[prefs.getInt(UNDO_OVERFLOW_POLICY, 0)]
     }
 
     fun save() {
@@ -124,6 +134,9 @@ internal object Config {
 
             prefs.putBoolean(TILESET_STAGE_SHOWING, tilesetStageShowing)
 
+            prefs.putLong(UNDO_MEMORY_BUDGET, undoMemoryBudget)
+            prefs.putInt(UNDO_OVERFLOW_POLICY, undoOverflowPolicy.ordinal)
+
             prefs.flush()
         }
         catch (except: BackingStoreException) {
@@ -87,6 +87,7 @@ import javafx.scene.control.ToggleGroup
 import javafx.scene.control.RadioMenuItem
 import javafx.scene.control.CheckBox
 import javafx.scene.control.RadioButton
+import javafx.scene.control.Tooltip
 
 import javafx.scene.control.ButtonType
 
@@ -117,6 +118,7 @@ import javafx.geometry.Insets
 import javafx.print.PrinterJob
 import javafx.scene.image.ImageView
 
+import io.fdeitylink.util.AtomicFileBatch
 import io.fdeitylink.util.Logger
 
 import io.fdeitylink.util.baseFilename
@@ -127,6 +129,7 @@ import io.fdeitylink.util.fx.FXUtil
 import io.fdeitylink.util.fx.FXUtil.close
 import io.fdeitylink.util.fx.FXUtil.scale
 import io.fdeitylink.util.fx.FileEditTab
+import io.fdeitylink.util.fx.UndoHistory
 
 import io.fdeitylink.keroedit.resource.ResourceManager
 
@@ -188,6 +191,9 @@ class KeroEdit : Application() {
 
         Config.load()
 
+        UndoHistory.memoryBudget = Config.undoMemoryBudget
+        UndoHistory.overflowPolicy = Config.undoOverflowPolicy
+
         enableOnLoadItems = mutableListOf()
     }
 
@@ -270,6 +276,7 @@ class KeroEdit : Application() {
 
     override fun stop() {
         ModLoader.execService.shutdown()
+        UndoHistory.close()
         Config.notepadText = notepadTab.notepad.text
         Config.save()
     }
@@ -342,11 +349,25 @@ class KeroEdit : Application() {
         menuItems[FileMenuItem.SAVE_ALL]!!.accelerator =
                 KeyCodeCombination(KeyCode.S, KeyCombination.SHIFT_DOWN, KeyCombination.CONTROL_DOWN)
         menuItems[FileMenuItem.SAVE_ALL]!!.setOnAction {
-            mainTabPane.tabs.forEach {
-                if (it is FileEditTab) {
-                    it.save()
+            /*
+             * Every tab stages its files in one batch, which forces them all to disk
+             * concurrently before replacing any of them, so no file is left half-written
+             */
+            try {
+                AtomicFileBatch().use { batch ->
+                    mainTabPane.tabs.forEach {
+                        if (it is FileEditTab) {
+                            it.save(batch)
+                        }
+                    }
+                    batch.commit()
                 }
             }
+            catch (except: IOException) {
+                FXUtil.createAlert(type = Alert.AlertType.ERROR, title = Messages["KeroEdit.SaveAll.IOExcept.TITLE"],
+                                   message = MessageFormat.format(Messages["KeroEdit.SaveAll.IOExcept.MESSAGE"],
+                                                                  except.message)).showAndWait()
+            }
         }
         menuItems[FileMenuItem.SAVE_ALL]!!.isDisable = true
         enableOnLoadItems.add(menuItems[FileMenuItem.SAVE_ALL]!!)
@@ -1041,25 +1062,27 @@ private class SettingsPane : GridPane() {
         add(label, x, y++)
 
         val toggleGroup = ToggleGroup()
-        val radioButtons = arrayOf(RadioButton(Messages["KeroEdit.SettingsPane.DRAW"])/*,
-                                       RadioButton(Messages["KeroEdit.SettingsPane.RECT"]),
-                                       RadioButton(Messages["KeroEdit.SettingsPane.COPY"]),
-                                       RadioButton(Messages["KeroEdit.SettingsPane.FILL"]),
-                                       RadioButton(Messages["KeroEdit.SettingsPane.REPLACE"])*/)
-
-        radioButtons[Config.drawMode.ordinal].isSelected = true
+        //TODO: Add RECT and COPY once they are implemented
+        val modes = arrayOf(MapEditTab.DrawMode.DRAW, MapEditTab.DrawMode.FILL, MapEditTab.DrawMode.REPLACE)
+        val radioButtons = Array(modes.size) { RadioButton(Messages["KeroEdit.SettingsPane.${modes[it]}"]) }
+        radioButtons[modes.indexOf(MapEditTab.DrawMode.REPLACE)].tooltip =
+                Tooltip(Messages["KeroEdit.SettingsPane.REPLACE_TOOLTIP"])
 
         for (i in radioButtons.indices) {
             radioButtons[i].toggleGroup = toggleGroup
 
-            radioButtons[i].selectedProperty().addListener { _, _, _ ->
-                val mode = MapEditTab.DrawMode.values()[i]
-                MapEditTab.setDrawMode(mode)
-                Config.drawMode = mode
+            radioButtons[i].selectedProperty().addListener { _, _, newValue ->
+                if (newValue) {
+                    MapEditTab.setDrawMode(modes[i])
+                    Config.drawMode = modes[i]
+                }
             }
 
             add(radioButtons[i], x, y++)
         }
+
+        //falls back to the first mode if the saved one isn't available, which the listener above saves
+        radioButtons[maxOf(0, modes.indexOf(Config.drawMode))].isSelected = true
     }
 
     private fun initViewSettings(x: Int) {
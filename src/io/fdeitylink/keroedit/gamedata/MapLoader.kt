@@ -0,0 +1,128 @@
+package io.fdeitylink.keroedit.gamedata
+
+import java.text.ParseException
+
+import java.io.IOException
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import io.fdeitylink.keroedit.map.PxPack
+
+/**
+ * Parses many PXPACK files at once on a bounded pool of threads
+ */
+object MapLoader {
+    /**
+     * Parses every map in [GameData.maps]. Since [GameData.maps] is filled on the JavaFX
+     * thread, this should be called on the JavaFX thread or once [GameData.init] has returned
+     * and all of its queued additions have run.
+     *
+     * @see load
+     */
+    @JvmOverloads
+    fun loadAll(lazyTileLayers: Boolean = false,
+                threads: Int = Runtime.getRuntime().availableProcessors()) =
+            load(ArrayList(GameData.maps), lazyTileLayers, threads)
+
+    /**
+     * Parses every map in [paths] concurrently, using at most [threads] threads. A map that cannot
+     * be read or parsed does not stop the others from loading - its exception is recorded in the
+     * returned [Result] instead.
+     *
+     * @param lazyTileLayers Passed to the [PxPack] constructor for each map. Scans that only need
+     * each map's head or entities should pass true so that no tile layers are read.
+     */
+    @JvmOverloads
+    fun load(paths: Collection<Path>, lazyTileLayers: Boolean = false,
+             threads: Int = Runtime.getRuntime().availableProcessors()): Result {
+        require(threads > 0) { "Attempt to load maps with a non-positive number of threads (threads: $threads)" }
+
+        val start = System.nanoTime()
+
+        val maps = linkedMapOf<Path, PxPack>()
+        val failures = linkedMapOf<Path, Exception>()
+        var bytesLoaded = 0L
+
+        if (paths.isEmpty()) {
+            return Result(maps, failures, 0, 0)
+        }
+
+        val pool = Executors.newFixedThreadPool(minOf(threads, paths.size)) {
+            val thread = Thread(it, "MapLoader")
+            thread.isDaemon = true
+            thread
+        }
+
+        try {
+            val tasks = paths.map { Callable<Any> { loadOne(it, lazyTileLayers) } }
+            val futures = pool.invokeAll(tasks)
+
+            for ((path, future) in paths.zip(futures)) {
+                val result = try {
+                    future.get()
+                }
+                catch (except: ExecutionException) {
+                    //every Exception is caught by the tasks, so this is an Error
+                    throw except.cause ?: except
+                }
+
+                when (result) {
+                    is LoadedMap -> {
+                        maps.put(path, result.map)
+                        bytesLoaded += result.fileSize
+                    }
+                    is Exception -> failures.put(path, result)
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow()
+        }
+
+        return Result(maps, failures, System.nanoTime() - start, bytesLoaded)
+    }
+
+    /**
+     * Returns either a [LoadedMap] or the exception thrown while loading it. Besides [IOException]s
+     * and [ParseException]s, [PxPack] throws [IllegalArgumentException]s for some bad input, such as a
+     * path without the map extension, so every exception is recorded rather than aborting the load.
+     */
+    private fun loadOne(path: Path, lazyTileLayers: Boolean): Any =
+            try {
+                val fileSize = Files.size(path)
+                LoadedMap(PxPack(path, lazyTileLayers), fileSize)
+            }
+            catch (except: Exception) {
+                except
+            }
+
+    private class LoadedMap(val map: PxPack, val fileSize: Long)
+
+    /**
+     * The outcome of a bulk load
+     *
+     * @property maps The maps that were loaded, in the order their paths were given
+     * @property failures The exception thrown for each map that could not be loaded
+     * @property elapsedNanos How long the whole load took, in nanoseconds
+     * @property bytesLoaded The total size of the files of the maps that were loaded
+     */
+    class Result internal constructor(val maps: Map<Path, PxPack>, val failures: Map<Path, Exception>,
+                                      val elapsedNanos: Long, val bytesLoaded: Long) {
+        val mapsPerSecond
+            get() = if (0L == elapsedNanos) 0.0 else maps.size * TimeUnit.SECONDS.toNanos(1).toDouble() / elapsedNanos
+
+        val bytesPerSecond
+            get() = if (0L == elapsedNanos) 0.0 else bytesLoaded * TimeUnit.SECONDS.toNanos(1).toDouble() / elapsedNanos
+
+        override fun toString() =
+                "Loaded ${maps.size} maps (${failures.size} failed, $bytesLoaded bytes) in " +
+                "${TimeUnit.NANOSECONDS.toMillis(elapsedNanos)} ms " +
+                "(${"%.1f".format(mapsPerSecond)} maps/s, ${"%.1f".format(bytesPerSecond / (1024 * 1024))} MiB/s)"
+    }
+}
@@ -11,11 +11,21 @@ import java.io.File
 import javafx.scene.image.Image
 import javafx.scene.image.WritableImage
 
+import io.fdeitylink.util.fx.FXUtil.scale
+
 import io.fdeitylink.keroedit.gamedata.GameData
 
 object ImageManager {
     private val imageMap = hashMapOf<String, Image>()
 
+    /*
+     * Scaled copies of images, keyed by name and scale. Drawing a tile from
+     * one of these is a single drawImage() call with a source rectangle.
+     */
+    private val scaledImageMap = hashMapOf<Pair<String, Double>, Image>()
+
+    private val tileTableMap = hashMapOf<String, TileTable>()
+
     private val EMPTY_IMAGE = Image("file:///")
 
     fun getImage(imageName: String, isTileset: Boolean): Image {
@@ -56,5 +66,35 @@ object ImageManager {
         return image
     }
 
-    fun wipe() = imageMap.clear()
+    /**
+     * Returns the image with the given name scaled by [scale]. Each image is only
+     * scaled once per scale, so this is meant for images that are drawn from
+     * repeatedly at the same zoom, such as tilesets.
+     */
+    fun getScaledImage(imageName: String, isTileset: Boolean, scale: Double): Image {
+        val key = Pair(imageName, scale)
+        scaledImageMap[key]?.let { return it }
+
+        val image = getImage(imageName, isTileset).scale(scale)
+        scaledImageMap.put(key, image)
+        return image
+    }
+
+    /**
+     * Returns the pixels of each tile of the tileset with the given name, decoded once
+     * per time the tileset is loaded (i.e. until [wipe] is called)
+     */
+    fun getTileTable(tilesetName: String): TileTable {
+        tileTableMap[tilesetName]?.let { return it }
+
+        val table = TileTable.decode(getImage(tilesetName, true), TILE_WIDTH, TILE_HEIGHT)
+        tileTableMap.put(tilesetName, table)
+        return table
+    }
+
+    fun wipe() {
+        imageMap.clear()
+        scaledImageMap.clear()
+        tileTableMap.clear()
+    }
 }
\ No newline at end of file
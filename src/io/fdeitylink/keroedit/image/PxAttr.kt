@@ -7,6 +7,8 @@ import java.nio.file.Files
 
 import java.nio.file.StandardOpenOption
 
+import java.nio.channels.FileChannel
+
 import java.nio.charset.Charset
 
 import java.nio.ByteBuffer
@@ -19,6 +21,9 @@ import kotlin.experimental.and
 
 import io.fdeitylink.util.Array2D
 
+import io.fdeitylink.util.AtomicFiles
+import io.fdeitylink.util.ChannelWriter
+
 import io.fdeitylink.util.Logger
 
 import io.fdeitylink.keroedit.Messages
@@ -111,41 +116,41 @@ class PxAttr {
 
     fun save() {
         try {
-            Files.newByteChannel(path,
-                                 StandardOpenOption.WRITE,
-                                 StandardOpenOption.TRUNCATE_EXISTING,
-                                 StandardOpenOption.CREATE).use {
-                var buf = ByteBuffer.wrap(HEADER_STRING.toByteArray(Charset.forName("SJIS")))
-                it.write(buf)
-
-                val attrs = _attributes
-                if (null == attrs) {
-                    buf = ByteBuffer.allocate(4)
-                    buf.putShort(0.toShort())
-                            .putShort(0.toShort())
-                    buf.flip()
-
-                    it.write(buf)
-                    return
+            //written to a temporary file and moved into place so a crash can't leave a half-written PXATTR
+            AtomicFiles.write(path, object : ChannelWriter {
+                override fun write(chan: FileChannel) {
+                    var buf = ByteBuffer.wrap(HEADER_STRING.toByteArray(Charset.forName("SJIS")))
+                    chan.write(buf)
+
+                    val attrs = _attributes
+                    if (null == attrs) {
+                        buf = ByteBuffer.allocate(4)
+                        buf.putShort(0.toShort())
+                                .putShort(0.toShort())
+                        buf.flip()
+
+                        chan.write(buf)
+                        return
+                    }
+                    else {
+                        val width = attrs.width.toShort()
+                        val height = attrs.height.toShort()
+
+                        buf = ByteBuffer.allocate(5)
+                        buf.order(ByteOrder.LITTLE_ENDIAN)
+
+                        buf.putShort(width).putShort(height).put(0.toByte())
+                        buf.flip()
+
+                        chan.write(buf)
+
+                        buf = ByteBuffer.allocate((width and 0xFFFF.toShort()) * (height and 0xFFFF.toShort()))
+                        attrs.forEach { buf.put(it.toByte()) }
+                        buf.flip()
+                        chan.write(buf)
+                    }
                 }
-                else {
-                    val width = attrs.width.toShort()
-                    val height = attrs.height.toShort()
-
-                    buf = ByteBuffer.allocate(5)
-                    buf.order(ByteOrder.LITTLE_ENDIAN)
-
-                    buf.putShort(width).putShort(height).put(0.toByte())
-                    buf.flip()
-
-                    it.write(buf)
-
-                    buf = ByteBuffer.allocate((width and 0xFFFF.toShort()) * (height and 0xFFFF.toShort()))
-                    attrs.forEach { buf.put(it.toByte()) }
-                    buf.flip()
-                    it.write(buf)
-                }
-            }
+            })
         }
         catch(except: IOException) {
             //TODO: Have PxAttrManager log and throw the specialized exception?
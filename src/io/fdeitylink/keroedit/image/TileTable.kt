@@ -0,0 +1,146 @@
+package io.fdeitylink.keroedit.image
+
+import javafx.scene.image.Image
+import javafx.scene.image.PixelFormat
+
+/**
+ * The pixels of each tile of an image of tiles (e.g. a tileset), decoded once so that drawing
+ * tiles is a matter of copying arrays rather than going through a [javafx.scene.image.PixelReader].
+ * The pixels are premultiplied ARGB, with the [tileWidth] * [tileHeight] pixels of tile `i`
+ * stored in row-major order starting at index `i * tileWidth * tileHeight` of [pixels]. Tiles
+ * are numbered left to right, then top to bottom, as they appear in the image.
+ */
+class TileTable(val tileWidth: Int, val tileHeight: Int, val pixels: IntArray) {
+    init {
+        require(tileWidth > 0 && tileHeight > 0)
+        { "Attempt to create TileTable with non-positive tile dimensions (tileWidth: $tileWidth, tileHeight: $tileHeight)" }
+        require(0 == pixels.size % (tileWidth * tileHeight))
+        { "Attempt to create TileTable with partial tile (pixels.size: ${pixels.size})" }
+    }
+
+    val tileArea
+        get() = tileWidth * tileHeight
+
+    val numTiles
+        get() = pixels.size / tileArea
+
+    /**
+     * Returns a copy of this table with every tile scaled by [scale] using nearest-neighbour sampling
+     */
+    fun scale(scale: Double): TileTable {
+        if (1.0 == scale) {
+            return this
+        }
+
+        val newWidth = (tileWidth * scale).toInt()
+        val newHeight = (tileHeight * scale).toInt()
+        require(newWidth > 0 && newHeight > 0)
+        { "Attempt to scale TileTable to empty tiles (tileWidth: $tileWidth, tileHeight: $tileHeight, scale: $scale)" }
+
+        //each new pixel takes the old pixel under its center
+        val srcXs = IntArray(newWidth) { minOf(tileWidth - 1, ((it + 0.5) / scale).toInt()) }
+        val srcYs = IntArray(newHeight) { minOf(tileHeight - 1, ((it + 0.5) / scale).toInt()) }
+
+        val scaled = IntArray(numTiles * newWidth * newHeight)
+        var dest = 0
+        for (tile in 0 until numTiles) {
+            val tileStart = tile * tileArea
+            for (y in 0 until newHeight) {
+                val srcRow = tileStart + (srcYs[y] * tileWidth)
+                for (x in 0 until newWidth) {
+                    scaled[dest++] = pixels[srcRow + srcXs[x]]
+                }
+            }
+        }
+
+        return TileTable(newWidth, newHeight, scaled)
+    }
+
+    /**
+     * Returns a copy of this table with tile `remap[i]` of [overlay] drawn over each tile `i`.
+     * Tiles with no entry in [remap], or whose entry is not a tile in [overlay], are left as they are.
+     *
+     * @throws IllegalArgumentException if the tiles of [overlay] are not the same size as the tiles in this table
+     */
+    fun overlay(overlay: TileTable, remap: IntArray): TileTable {
+        require(overlay.tileWidth == tileWidth && overlay.tileHeight == tileHeight) {
+            "Attempt to overlay TileTable with tiles of a different size " +
+            "(tileWidth: $tileWidth, tileHeight: $tileHeight, " +
+            "overlay.tileWidth: ${overlay.tileWidth}, overlay.tileHeight: ${overlay.tileHeight})"
+        }
+
+        val composite = pixels.copyOf()
+        for (tile in 0 until minOf(numTiles, remap.size)) {
+            val overlayTile = remap[tile]
+            if (overlayTile < 0 || overlay.numTiles <= overlayTile) {
+                continue
+            }
+
+            val dest = tile * tileArea
+            val src = overlayTile * tileArea
+            for (i in 0 until tileArea) {
+                composite[dest + i] = blend(overlay.pixels[src + i], composite[dest + i])
+            }
+        }
+
+        return TileTable(tileWidth, tileHeight, composite)
+    }
+
+    companion object {
+        /**
+         * Returns the premultiplied ARGB pixel [src] drawn over the premultiplied ARGB pixel [dest]
+         */
+        private fun blend(src: Int, dest: Int): Int {
+            val srcAlpha = src ushr 24
+            if (0xFF == srcAlpha) {
+                return src
+            }
+            if (0 == srcAlpha) {
+                return dest
+            }
+
+            val inverse = 0xFF - srcAlpha
+            var result = 0
+            for (shift in 0..24 step 8) {
+                val channel = ((src ushr shift) and 0xFF) + ((((dest ushr shift) and 0xFF) * inverse + 127) / 0xFF)
+                result = result or (minOf(0xFF, channel) shl shift)
+            }
+            return result
+        }
+
+        /**
+         * Decodes every whole [tileWidth] by [tileHeight] tile in [image]. Returns a table with no
+         * tiles if [image] has no pixels to read.
+         */
+        @JvmStatic
+        fun decode(image: Image, tileWidth: Int, tileHeight: Int): TileTable {
+            val width = image.width.toInt()
+            val height = image.height.toInt()
+            val reader = image.pixelReader
+
+            val tilesPerRow = width / tileWidth
+            val tilesPerColumn = height / tileHeight
+            if (null == reader || 0 == tilesPerRow || 0 == tilesPerColumn) {
+                return TileTable(tileWidth, tileHeight, IntArray(0))
+            }
+
+            val imagePixels = IntArray(width * height)
+            reader.getPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), imagePixels, 0, width)
+
+            val pixels = IntArray(tilesPerRow * tilesPerColumn * tileWidth * tileHeight)
+            var dest = 0
+            for (tileY in 0 until tilesPerColumn) {
+                for (tileX in 0 until tilesPerRow) {
+                    var src = (tileY * tileHeight * width) + (tileX * tileWidth)
+                    for (row in 0 until tileHeight) {
+                        System.arraycopy(imagePixels, src, pixels, dest, tileWidth)
+                        src += width
+                        dest += tileWidth
+                    }
+                }
+            }
+
+            return TileTable(tileWidth, tileHeight, pixels)
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package io.fdeitylink.keroedit.map;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse storage for the tiles of a {@link PxPack.TileLayer}. Tiles are kept one unsigned
+ * byte each in square chunks of {@code CHUNK_SIZE} by {@code CHUNK_SIZE} tiles. Chunks with
+ * no nonzero tiles all share a single read-only empty chunk, so a large, mostly empty layer
+ * only uses memory for the parts of it that have content.
+ *
+ * Every tile in a chunk that lies outside of the store's width and height is always 0. This
+ * lets resizes reuse chunks as they are, only copying the chunks along the new edges.
+ *
+ * No bounds checking is done by this class - that is left to {@code TileLayer}.
+ */
+final class ChunkedTileStore {
+    static final int CHUNK_SHIFT = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_AREA = CHUNK_SIZE * CHUNK_SIZE;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    //shared by every chunk that is entirely 0 - never written to
+    private static final byte[] EMPTY_CHUNK = new byte[CHUNK_AREA];
+
+    private int width;
+    private int height;
+
+    private int chunksPerRow;
+    private int chunksPerColumn;
+
+    private byte[][] chunks;
+
+    /**
+     * Constructs a store with the given dimensions whose tiles are all 0
+     */
+    ChunkedTileStore(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+
+        chunksPerRow = chunksFor(width);
+        chunksPerColumn = chunksFor(height);
+
+        chunks = new byte[chunksPerRow * chunksPerColumn][];
+        Arrays.fill(chunks, EMPTY_CHUNK);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int get(final int x, final int y) {
+        return chunks[((y >> CHUNK_SHIFT) * chunksPerRow) + (x >> CHUNK_SHIFT)][indexInChunk(x, y)] & 0xFF;
+    }
+
+    void set(final int x, final int y, final int tile) {
+        final int chunkIndex = ((y >> CHUNK_SHIFT) * chunksPerRow) + (x >> CHUNK_SHIFT);
+
+        byte[] chunk = chunks[chunkIndex];
+        if (EMPTY_CHUNK == chunk) {
+            if (0 == tile) {
+                return;
+            }
+            chunk = chunks[chunkIndex] = new byte[CHUNK_AREA];
+        }
+
+        chunk[indexInChunk(x, y)] = (byte)tile;
+    }
+
+    /**
+     * Sets the tiles from ({@code fromX}, {@code y}) up to but not including ({@code toX}, {@code y})
+     * to {@code tile}, a chunk at a time
+     */
+    void fillRow(final int y, final int fromX, final int toX, final int tile) {
+        final int rowOffset = (y >> CHUNK_SHIFT) * chunksPerRow;
+        final int offsetInChunk = (y & CHUNK_MASK) << CHUNK_SHIFT;
+
+        for (int x = fromX; x < toX; ) {
+            final int chunkEnd = Math.min(toX, ((x >> CHUNK_SHIFT) + 1) << CHUNK_SHIFT);
+            final int chunkIndex = rowOffset + (x >> CHUNK_SHIFT);
+
+            byte[] chunk = chunks[chunkIndex];
+            if (EMPTY_CHUNK == chunk) {
+                if (0 == tile) {
+                    x = chunkEnd;
+                    continue;
+                }
+                chunk = chunks[chunkIndex] = new byte[CHUNK_AREA];
+            }
+
+            Arrays.fill(chunk, offsetInChunk + (x & CHUNK_MASK), offsetInChunk + ((chunkEnd - 1) & CHUNK_MASK) + 1, (byte)tile);
+            x = chunkEnd;
+        }
+    }
+
+    /**
+     * Replaces every {@code from} tile in chunk row {@code cy} with {@code to}. Which tiles were replaced is
+     * recorded in {@code replaced}, which must hold {@code CHUNK_SIZE * chunksPerRow} words - the tile at
+     * ({@code x}, {@code y}) is bit {@code x & (CHUNK_SIZE - 1)} of word {@code ((y % CHUNK_SIZE) * chunksPerRow) +
+     * (x / CHUNK_SIZE)}. Each chunk row has chunks of its own, so different chunk rows may be replaced concurrently.
+     */
+    void replaceInChunkRow(final int cy, final int from, final int to, final long[] replaced) {
+        final byte fromValue = (byte)from;
+        final byte toValue = (byte)to;
+        final int rows = Math.min(CHUNK_SIZE, height - (cy << CHUNK_SHIFT));
+
+        for (int cx = 0; cx < chunksPerRow; ++cx) {
+            final int chunkIndex = (cy * chunksPerRow) + cx;
+            final int columns = rowLength(cx);
+
+            byte[] chunk = chunks[chunkIndex];
+            if (EMPTY_CHUNK == chunk) {
+                if (0 != from) {
+                    continue;
+                }
+
+                //only the part of the chunk within the store is replaced, as the rest must stay 0
+                chunk = chunks[chunkIndex] = new byte[CHUNK_AREA];
+                final long mask = CHUNK_SIZE == columns ? -1L : (1L << columns) - 1;
+                for (int r = 0; r < rows; ++r) {
+                    Arrays.fill(chunk, r << CHUNK_SHIFT, (r << CHUNK_SHIFT) + columns, toValue);
+                    replaced[(r * chunksPerRow) + cx] = mask;
+                }
+                continue;
+            }
+
+            for (int r = 0; r < rows; ++r) {
+                final int offset = r << CHUNK_SHIFT;
+                long bits = 0;
+                for (int c = 0; c < columns; ++c) {
+                    if (fromValue == chunk[offset + c]) {
+                        chunk[offset + c] = toValue;
+                        bits |= 1L << c;
+                    }
+                }
+                replaced[(r * chunksPerRow) + cx] = bits;
+            }
+        }
+    }
+
+    /**
+     * Sets each tile in row {@code y} of the chunks in column {@code cx} whose bit is set in {@code mask} to
+     * {@code tile}, where bit {@code i} is the tile at ({@code (cx * CHUNK_SIZE) + i}, {@code y})
+     */
+    void setMasked(final int cx, final int y, final long mask, final int tile) {
+        final int chunkIndex = ((y >> CHUNK_SHIFT) * chunksPerRow) + cx;
+
+        byte[] chunk = chunks[chunkIndex];
+        if (EMPTY_CHUNK == chunk) {
+            if (0 == tile) {
+                return;
+            }
+            chunk = chunks[chunkIndex] = new byte[CHUNK_AREA];
+        }
+
+        final int offset = (y & CHUNK_MASK) << CHUNK_SHIFT;
+        for (long bits = mask; 0 != bits; bits &= bits - 1) {
+            chunk[offset + Long.numberOfTrailingZeros(bits)] = (byte)tile;
+        }
+    }
+
+    int getChunksPerRow() {
+        return chunksPerRow;
+    }
+
+    int getChunksPerColumn() {
+        return chunksPerColumn;
+    }
+
+    /**
+     * Returns the x coordinate of the first tile from ({@code fromX}, {@code y}) up to but not including
+     * ({@code toX}, {@code y}) that is {@code tile} if {@code matching} is true, or is not {@code tile}
+     * otherwise. Returns {@code toX} if there is no such tile.
+     */
+    int indexOf(final int y, final int fromX, final int toX, final int tile, final boolean matching) {
+        final int rowOffset = (y >> CHUNK_SHIFT) * chunksPerRow;
+        final int offsetInChunk = (y & CHUNK_MASK) << CHUNK_SHIFT;
+        final byte value = (byte)tile;
+
+        for (int x = fromX; x < toX; ) {
+            final int chunkEnd = Math.min(toX, ((x >> CHUNK_SHIFT) + 1) << CHUNK_SHIFT);
+
+            final byte[] chunk = chunks[rowOffset + (x >> CHUNK_SHIFT)];
+            if (EMPTY_CHUNK == chunk) {
+                if ((0 == tile) == matching) {
+                    return x;
+                }
+                x = chunkEnd;
+                continue;
+            }
+
+            for (; x < chunkEnd; ++x) {
+                if ((value == chunk[offsetInChunk + (x & CHUNK_MASK)]) == matching) {
+                    return x;
+                }
+            }
+        }
+        return toX;
+    }
+
+    /**
+     * Returns the x coordinate of the last tile from (0, {@code y}) up to and including ({@code fromX}, {@code y})
+     * that is {@code tile} if {@code matching} is true, or is not {@code tile} otherwise. Returns -1 if there is
+     * no such tile.
+     */
+    int lastIndexOf(final int y, final int fromX, final int tile, final boolean matching) {
+        final int rowOffset = (y >> CHUNK_SHIFT) * chunksPerRow;
+        final int offsetInChunk = (y & CHUNK_MASK) << CHUNK_SHIFT;
+        final byte value = (byte)tile;
+
+        for (int x = fromX; x >= 0; ) {
+            final int chunkStart = x & ~CHUNK_MASK;
+
+            final byte[] chunk = chunks[rowOffset + (x >> CHUNK_SHIFT)];
+            if (EMPTY_CHUNK == chunk) {
+                if ((0 == tile) == matching) {
+                    return x;
+                }
+                x = chunkStart - 1;
+                continue;
+            }
+
+            for (; x >= chunkStart; --x) {
+                if ((value == chunk[offsetInChunk + (x & CHUNK_MASK)]) == matching) {
+                    return x;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of chunks that have their own storage (i.e. are not the shared empty chunk)
+     */
+    int allocatedChunks() {
+        int count = 0;
+        for (final byte[] chunk : chunks) {
+            if (EMPTY_CHUNK != chunk) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Resizes the store, keeping the tiles that are within both the old and new dimensions. Chunks
+     * that survive the resize are reused rather than copied, so only the chunks along the new right
+     * and bottom edges that have tiles cropped off are copied.
+     *
+     * @return A {@code Snapshot} that will put this store back to how it was before the resize when
+     * passed to {@link #restore(Snapshot)}, as long as every change made since has been reverted.
+     * It shares all chunks that survived the resize with this store, so it only costs the memory of
+     * the chunks that were cropped off.
+     */
+    Snapshot resize(final int width, final int height) {
+        final int newChunksPerRow = chunksFor(width);
+        final int newChunksPerColumn = chunksFor(height);
+
+        final byte[][] newChunks = new byte[newChunksPerRow * newChunksPerColumn][];
+        Arrays.fill(newChunks, EMPTY_CHUNK);
+
+        final int rowBound = Math.min(chunksPerColumn, newChunksPerColumn);
+        final int columnBound = Math.min(chunksPerRow, newChunksPerRow);
+        for (int cy = 0; cy < rowBound; ++cy) {
+            System.arraycopy(chunks, cy * chunksPerRow, newChunks, cy * newChunksPerRow, columnBound);
+        }
+
+        /*
+         * Chunks on the new edges that had tiles cropped off are replaced with cropped copies, leaving
+         * the originals untouched for the snapshot. The cropped parts must be 0 so that growing again
+         * later exposes 0s.
+         */
+        final boolean widthCropped = width < this.width && 0 != (width & CHUNK_MASK);
+        final boolean heightCropped = height < this.height && 0 != (height & CHUNK_MASK);
+
+        if (widthCropped) {
+            final int cx = width >> CHUNK_SHIFT;
+            for (int cy = 0; cy < rowBound; ++cy) {
+                final int fromY = heightCropped && cy == height >> CHUNK_SHIFT ? height & CHUNK_MASK : CHUNK_SIZE;
+                newChunks[(cy * newChunksPerRow) + cx] = croppedCopy(newChunks[(cy * newChunksPerRow) + cx],
+                                                                     width & CHUNK_MASK, fromY);
+            }
+        }
+        if (heightCropped) {
+            final int cy = height >> CHUNK_SHIFT;
+            //the corner chunk was already cropped above if the width was also cropped
+            final int cxBound = widthCropped ? width >> CHUNK_SHIFT : columnBound;
+            for (int cx = 0; cx < cxBound; ++cx) {
+                newChunks[(cy * newChunksPerRow) + cx] = croppedCopy(newChunks[(cy * newChunksPerRow) + cx],
+                                                                     CHUNK_SIZE, height & CHUNK_MASK);
+            }
+        }
+
+        final Snapshot snapshot = new Snapshot(this, this.width, this.height, chunksPerRow, chunksPerColumn, chunks,
+                                               retainedBytes(chunks, newChunks));
+
+        this.width = width;
+        this.height = height;
+        chunksPerRow = newChunksPerRow;
+        chunksPerColumn = newChunksPerColumn;
+        chunks = newChunks;
+
+        return snapshot;
+    }
+
+    /**
+     * Puts this store back to the state captured by {@code snapshot}
+     *
+     * @throws IllegalArgumentException if {@code snapshot} was not taken from this store
+     */
+    void restore(final Snapshot snapshot) {
+        if (this != snapshot.owner) {
+            throw new IllegalArgumentException("Attempt to restore tile store from a snapshot of a different store");
+        }
+
+        width = snapshot.width;
+        height = snapshot.height;
+        chunksPerRow = snapshot.chunksPerRow;
+        chunksPerColumn = snapshot.chunksPerColumn;
+        chunks = snapshot.chunks;
+    }
+
+    /**
+     * Fills every tile in this store from {@code buf}, which must be positioned at
+     * {@code width * height} bytes of row-major tiles
+     */
+    void read(final ByteBuffer buf) {
+        for (int cy = 0; cy < chunksPerColumn; ++cy) {
+            final int rowOffset = cy * chunksPerRow;
+            for (int cx = 0; cx < chunksPerRow; ++cx) {
+                chunks[rowOffset + cx] = new byte[CHUNK_AREA];
+            }
+
+            final int yBound = Math.min(height, (cy + 1) << CHUNK_SHIFT);
+            for (int y = cy << CHUNK_SHIFT; y < yBound; ++y) {
+                for (int cx = 0; cx < chunksPerRow; ++cx) {
+                    buf.get(chunks[rowOffset + cx], (y & CHUNK_MASK) << CHUNK_SHIFT, rowLength(cx));
+                }
+            }
+
+            //chunks that turned out to be empty are swapped for the shared one
+            for (int cx = 0; cx < chunksPerRow; ++cx) {
+                if (isEmpty(chunks[rowOffset + cx])) {
+                    chunks[rowOffset + cx] = EMPTY_CHUNK;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every tile in this store to {@code buf} in row-major order
+     */
+    void write(final ByteBuffer buf) {
+        writeRows(buf, 0, height);
+    }
+
+    /**
+     * Writes the rows of tiles from {@code fromY} (inclusive) to {@code toY} (exclusive)
+     * to {@code buf} in row-major order
+     */
+    void writeRows(final ByteBuffer buf, final int fromY, final int toY) {
+        for (int y = fromY; y < toY; ++y) {
+            final int rowOffset = (y >> CHUNK_SHIFT) * chunksPerRow;
+            for (int cx = 0; cx < chunksPerRow; ++cx) {
+                buf.put(chunks[rowOffset + cx], (y & CHUNK_MASK) << CHUNK_SHIFT, rowLength(cx));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tiles within the store's width in a row of the chunks in column {@code cx}
+     */
+    private int rowLength(final int cx) {
+        return Math.min(CHUNK_SIZE, width - (cx << CHUNK_SHIFT));
+    }
+
+    /**
+     * Returns a copy of {@code chunk} with every tile whose x is at least {@code fromX} or whose y
+     * is at least {@code fromY} set to 0, or the shared empty chunk if nothing is left in it
+     */
+    private static byte[] croppedCopy(final byte[] chunk, final int fromX, final int fromY) {
+        if (EMPTY_CHUNK == chunk) {
+            return EMPTY_CHUNK;
+        }
+
+        final byte[] copy = new byte[CHUNK_AREA];
+        for (int y = 0; y < fromY; ++y) {
+            final int offset = y << CHUNK_SHIFT;
+            System.arraycopy(chunk, offset, copy, offset, fromX);
+        }
+
+        return isEmpty(copy) ? EMPTY_CHUNK : copy;
+    }
+
+    /**
+     * Returns roughly how many bytes {@code oldChunks} holds on to that {@code newChunks} does not,
+     * i.e. the chunk array itself plus every nonempty chunk that is not shared with {@code newChunks}
+     */
+    private static long retainedBytes(final byte[][] oldChunks, final byte[][] newChunks) {
+        final Set<byte[]> kept = Collections.newSetFromMap(new IdentityHashMap<>(newChunks.length));
+        Collections.addAll(kept, newChunks);
+
+        //one reference per chunk, assuming they're no bigger than 8 bytes
+        long bytes = (long)oldChunks.length * Long.BYTES;
+        for (final byte[] chunk : oldChunks) {
+            if (EMPTY_CHUNK != chunk && !kept.contains(chunk)) {
+                bytes += CHUNK_AREA;
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean isEmpty(final byte[] chunk) {
+        for (final byte tile : chunk) {
+            if (0 != tile) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexInChunk(final int x, final int y) {
+        return ((y & CHUNK_MASK) << CHUNK_SHIFT) | (x & CHUNK_MASK);
+    }
+
+    private static int chunksFor(final int tiles) {
+        return (tiles + CHUNK_MASK) >> CHUNK_SHIFT;
+    }
+
+    /**
+     * The dimensions and chunks of a {@code ChunkedTileStore} at some point in time
+     */
+    static final class Snapshot {
+        private final ChunkedTileStore owner;
+
+        private final int width;
+        private final int height;
+
+        private final int chunksPerRow;
+        private final int chunksPerColumn;
+
+        private final byte[][] chunks;
+
+        private final long byteSize;
+
+        private Snapshot(final ChunkedTileStore owner, final int width, final int height,
+                         final int chunksPerRow, final int chunksPerColumn, final byte[][] chunks,
+                         final long byteSize) {
+            this.owner = owner;
+            this.width = width;
+            this.height = height;
+            this.chunksPerRow = chunksPerRow;
+            this.chunksPerColumn = chunksPerColumn;
+            this.chunks = chunks;
+            this.byteSize = byteSize;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        /**
+         * Returns roughly how many bytes this snapshot holds on to that the store it was
+         * taken from did not keep after the resize
+         */
+        long getByteSize() {
+            return byteSize;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.fdeitylink.keroedit.map;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * A spatial index over the entities of a {@link PxPack}. Entities are kept in square buckets of
+ * {@code BUCKET_SIZE} by {@code BUCKET_SIZE} tiles, so finding the entities at a tile only looks
+ * at the entities in one bucket, and finding the entities in a rectangle only looks at the
+ * buckets that overlap it. Buckets with no entities in them are not stored.
+ *
+ * Each bucket keeps its entities in the order of their positions in the map's entity list, so
+ * entities found at a tile come in the same order as they do in {@link PxPack#getEntities()}.
+ *
+ * This class does not watch the entities - {@link #move(PxPack.Entity, int, int)} must be
+ * called whenever an indexed entity's coordinates change, and the index must be rebuilt
+ * whenever the positions of entities in the list change.
+ */
+final class EntityIndex {
+    static final int BUCKET_SHIFT = 4;
+    static final int BUCKET_SIZE = 1 << BUCKET_SHIFT;
+
+    private final HashMap<Long, ArrayList<PxPack.Entity>> buckets = new HashMap<>();
+
+    //position of each entity in the entity list, by identity
+    private final IdentityHashMap<PxPack.Entity, Integer> positions = new IdentityHashMap<>();
+
+    void clear() {
+        buckets.clear();
+        positions.clear();
+    }
+
+    /**
+     * Adds {@code entity}, which is at {@code position} in the entity list
+     */
+    void add(final PxPack.Entity entity, final int position) {
+        positions.put(entity, position);
+        insert(entity, position);
+    }
+
+    /**
+     * Moves {@code entity} from the bucket for ({@code oldX}, {@code oldY}) to the bucket for its current
+     * coordinates. Does nothing if {@code entity} was not in the index.
+     */
+    void move(final PxPack.Entity entity, final int oldX, final int oldY) {
+        final long oldKey = key(oldX, oldY);
+        if (oldKey == key(entity.getX(), entity.getY())) {
+            return;
+        }
+
+        if (remove(entity, oldKey)) {
+            insert(entity, positions.get(entity));
+        }
+    }
+
+    /**
+     * Returns the entities at the given tile, in the order of their positions in the entity list
+     */
+    ArrayList<PxPack.Entity> getAt(final int x, final int y) {
+        final ArrayList<PxPack.Entity> result = new ArrayList<>();
+
+        final ArrayList<PxPack.Entity> bucket = buckets.get(key(x, y));
+        if (null != bucket) {
+            for (final PxPack.Entity e : bucket) {
+                if (x == e.getX() && y == e.getY()) {
+                    result.add(e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entities within the rectangle with its top left corner at ({@code x}, {@code y})
+     * and the given dimensions, bucket by bucket
+     */
+    ArrayList<PxPack.Entity> getIn(final int x, final int y, final int width, final int height) {
+        final ArrayList<PxPack.Entity> result = new ArrayList<>();
+        if (width <= 0 || height <= 0) {
+            return result;
+        }
+
+        //coordinates are never outside of 0 - 0xFFFF, so neither are the buckets worth checking
+        final int left = Math.max(0, x);
+        final int top = Math.max(0, y);
+        final int right = (int)Math.min(0xFFFF, (long)x + width - 1);
+        final int bottom = (int)Math.min(0xFFFF, (long)y + height - 1);
+        if (left > right || top > bottom) {
+            return result;
+        }
+
+        for (int by = top >> BUCKET_SHIFT; by <= bottom >> BUCKET_SHIFT; ++by) {
+            for (int bx = left >> BUCKET_SHIFT; bx <= right >> BUCKET_SHIFT; ++bx) {
+                final ArrayList<PxPack.Entity> bucket = buckets.get(((long)bx << 32) | by);
+                if (null == bucket) {
+                    continue;
+                }
+
+                for (final PxPack.Entity e : bucket) {
+                    if (left <= e.getX() && e.getX() <= right && top <= e.getY() && e.getY() <= bottom) {
+                        result.add(e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Puts {@code entity} in the bucket for its coordinates, after every entity in it that comes before it in the list
+     */
+    private void insert(final PxPack.Entity entity, final int position) {
+        final ArrayList<PxPack.Entity> bucket = buckets.computeIfAbsent(key(entity.getX(), entity.getY()),
+                                                                        k -> new ArrayList<>());
+
+        //entities are added in list order when the index is built, so this is usually the end
+        int i = bucket.size();
+        while (0 < i && positions.get(bucket.get(i - 1)) > position) {
+            --i;
+        }
+        bucket.add(i, entity);
+    }
+
+    private boolean remove(final PxPack.Entity entity, final long key) {
+        final ArrayList<PxPack.Entity> bucket = buckets.get(key);
+        if (null == bucket) {
+            return false;
+        }
+
+        //by identity, as an entity equal to another one is still a different entity
+        for (int i = 0; i < bucket.size(); ++i) {
+            if (entity == bucket.get(i)) {
+                bucket.remove(i);
+                if (bucket.isEmpty()) {
+                    buckets.remove(key);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long key(final int x, final int y) {
+        return ((long)(x >> BUCKET_SHIFT) << 32) | (y >> BUCKET_SHIFT);
+    }
+}
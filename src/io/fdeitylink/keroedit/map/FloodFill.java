@@ -0,0 +1,115 @@
+package io.fdeitylink.keroedit.map;
+
+import java.util.Arrays;
+
+/**
+ * A scanline flood fill over a {@link ChunkedTileStore}. Rather than visiting tiles one at a time,
+ * it fills a whole span of matching tiles along a row at once, then pushes one seed for each run of
+ * matching tiles directly above and below the span. Back in the row a span was seeded from, only the
+ * parts beyond the span that seeded it can still hold matching tiles, so only those are searched.
+ * Rows are searched a chunk at a time, so empty chunks are skipped over whole.
+ *
+ * Seeds are kept on an explicit stack of ints, so filling a huge area needs neither recursion nor an
+ * object per tile. Filled tiles no longer match, so they are never filled twice and nothing else needs
+ * to track what was visited.
+ */
+final class FloodFill {
+    //ints per seed: x | (y << 16), the row it was seeded from relative to y, and that row's span
+    private static final int SEED_SIZE = 4;
+
+    private final ChunkedTileStore tiles;
+    private final int target;
+
+    private int[] stack = new int[SEED_SIZE * 16];
+    private int size;
+
+    private FloodFill(final ChunkedTileStore tiles, final int target) {
+        this.tiles = tiles;
+        this.target = target;
+    }
+
+    /**
+     * Sets every tile connected to ({@code x}, {@code y}) with the same value as it to {@code tile},
+     * assuming that the coordinates are within {@code tiles}
+     *
+     * @return A {@code TileDelta} made up of the filled spans
+     */
+    static TileDelta fill(final ChunkedTileStore tiles, final int x, final int y, final int tile) {
+        final FloodFill fill = new FloodFill(tiles, tiles.get(x, y));
+        final TileDelta.Builder delta = new TileDelta.Builder();
+        if (fill.target == tile) {
+            return delta.build();
+        }
+
+        fill.push(x, y, 0, 0, 0);
+        fill.run(tile, delta);
+        return delta.build();
+    }
+
+    private void run(final int tile, final TileDelta.Builder delta) {
+        final int width = tiles.getWidth();
+        final int height = tiles.getHeight();
+
+        while (0 < size) {
+            size -= SEED_SIZE;
+            final int seedX = stack[size] & 0xFFFF;
+            final int seedY = stack[size] >>> 16;
+            final int parentDir = stack[size + 1];
+            final int parentLeft = stack[size + 2];
+            final int parentRight = stack[size + 3];
+
+            //another span may have covered this seed since it was pushed
+            if (target != tiles.get(seedX, seedY)) {
+                continue;
+            }
+
+            final int left = tiles.lastIndexOf(seedY, seedX, target, false) + 1;
+            final int right = tiles.indexOf(seedY, seedX, width, target, false);
+
+            tiles.fillRow(seedY, left, right, tile);
+            delta.addSpan(left, seedY, right - left, target, tile);
+
+            for (int dir = -1; dir <= 1; dir += 2) {
+                final int rowY = seedY + dir;
+                if (0 > rowY || height <= rowY) {
+                    continue;
+                }
+
+                if (dir == parentDir) {
+                    //the parent's span is already filled
+                    pushRuns(rowY, left, Math.min(right, parentLeft), seedY, left, right);
+                    pushRuns(rowY, Math.max(left, parentRight), right, seedY, left, right);
+                }
+                else {
+                    pushRuns(rowY, left, right, seedY, left, right);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pushes a seed for the start of each run of matching tiles in row {@code rowY} from {@code fromX}
+     * up to {@code toX}, which were found next to the span from {@code spanLeft} up to {@code spanRight}
+     * in row {@code spanY}
+     */
+    private void pushRuns(final int rowY, final int fromX, final int toX,
+                          final int spanY, final int spanLeft, final int spanRight) {
+        int x = tiles.indexOf(rowY, fromX, toX, target, true);
+        while (x < toX) {
+            push(x, rowY, spanY - rowY, spanLeft, spanRight);
+            x = tiles.indexOf(rowY, tiles.indexOf(rowY, x, toX, target, false), toX, target, true);
+        }
+    }
+
+    private void push(final int x, final int y, final int parentDir, final int parentLeft, final int parentRight) {
+        if (stack.length == size) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+
+        stack[size] = x | (y << 16);
+        stack[size + 1] = parentDir;
+        stack[size + 2] = parentLeft;
+        stack[size + 3] = parentRight;
+        size += SEED_SIZE;
+    }
+}
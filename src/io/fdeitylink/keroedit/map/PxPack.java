@@ -2,29 +2,37 @@
  * TODO:
  * Ensure all 2D array arguments have rows with equal lengths
  * Allow null arguments for string setters? (instead of setting to null, set to "")
- * toBuff() methods in Head, TileLayer, and Entity that return ByteBuffer (to make save() easier)
  */
 
 package io.fdeitylink.keroedit.map;
 
+import java.util.List;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.RandomAccess;
 
 import java.text.MessageFormat;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.BufferUnderflowException;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.text.ParseException;
 
 import javafx.scene.paint.Color;
 
+import io.fdeitylink.util.AtomicFileBatch;
+import io.fdeitylink.util.AtomicFiles;
+import io.fdeitylink.util.FilePatch;
 import io.fdeitylink.util.NullArgumentException;
 
 import io.fdeitylink.util.UtilsKt;
@@ -39,11 +47,30 @@ import io.fdeitylink.keroedit.gamedata.GameData;
 public final class PxPack {
     public static final int NUM_LAYERS = 3;
 
+    private static final ThreadLocal <ByteBuffer> SAVE_BUFFER = new ThreadLocal <>();
+
     private Path path;
 
     private final Head head;
     private final TileLayer[] tileLayers;
-    private final ArrayList <Entity> entities;
+    private final EntityList entities;
+
+    /*
+     * What this map's file looked like when it was last read or written, used to patch
+     * only the changed sections on save. Null if the file has never been read or written.
+     */
+    private SavedLayout savedLayout;
+
+    //whether the head and entity table have changed since they were last read or written
+    private boolean headDirty;
+    private boolean entitiesDirty;
+
+    /*
+     * Where to find the tiles of each layer that has not been decoded yet (null for
+     * layers that have been), or null if every layer has been. Only set for lazy opens.
+     */
+    private PendingLayer[] pendingLayers;
+    private long pendingFileSize;
 
     /**
      * Constructs a PxPackMap object and parses a given PXPACK mapFile
@@ -52,9 +79,25 @@ public final class PxPack {
      * @param inPath A File object pointing to a PXPACK map file
      *
      * @throws IOException if there was an error reading the PXPACK file
-     * @throws ParseException if the mapFile format was somehow incorrect
+     * @throws ParseException if the mapFile format was somehow incorrect or the file was truncated
      */
     public PxPack(final Path inPath) throws IOException, ParseException {
+        this(inPath, false);
+    }
+
+    /**
+     * Constructs a PxPackMap object and parses a given PXPACK mapFile
+     * to initialize the fields of the object
+     *
+     * @param inPath A File object pointing to a PXPACK map file
+     * @param lazyTileLayers If true, only the head, the layer headers and the entities are read in
+     * and the tiles of each layer are decoded on the first call to {@link #getTileLayers()}. This makes
+     * opening a map for its head or entities alone cost a few small reads no matter how big its layers are.
+     *
+     * @throws IOException if there was an error reading the PXPACK file
+     * @throws ParseException if the mapFile format was somehow incorrect or the file was truncated
+     */
+    public PxPack(final Path inPath, final boolean lazyTileLayers) throws IOException, ParseException {
         path = NullArgumentException.Companion.requireNonNull(inPath, "PxPack", "inPath").toAbsolutePath();
 
         if (!inPath.toString().endsWith(GameData.mapExtension)) {
@@ -62,6 +105,9 @@ public final class PxPack {
                                                " does not end with extension " + GameData.mapExtension);
         }
 
+        //a save that was cut off partway through patching the file is finished before it is read
+        AtomicFiles.INSTANCE.recover(inPath);
+
         //TODO: Test this
         if (!Files.exists(inPath)) {
             /*
@@ -84,249 +130,518 @@ public final class PxPack {
                 tileLayers[i] = new TileLayer();
             }
 
-            entities = new ArrayList <>();
+            entities = new EntityList();
             return;
         }
 
-        try (SeekableByteChannel chan = Files.newByteChannel(inPath, StandardOpenOption.READ)) {
-            ByteBuffer buf = ByteBuffer.allocate(Head.HEADER_STRING.length());
-            chan.read(buf);
+        tileLayers = new TileLayer[NUM_LAYERS];
+
+        final SavedLayout layout = new SavedLayout();
+        //read before the contents so that a change made while reading shows up as a newer time
+        layout.lastModified = Files.getLastModifiedTime(inPath);
+
+        if (lazyTileLayers) {
+            /*
+             * Each section is read with its own positional read so that the bytes
+             * of the tile layers never have to be read in at all
+             */
+            try (FileChannel chan = FileChannel.open(inPath, StandardOpenOption.READ)) {
+                final long size = chan.size();
+
+                final ByteBuffer headBuf = readRange(chan, 0, (int)Math.min(size, Head.MAX_BYTE_SIZE));
+                try {
+                    head = readHead(headBuf, inPath);
+                }
+                catch (final BufferUnderflowException except) {
+                    throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.UNEXPECTED_EOF"),
+                                                                  inPath.getFileName()), headBuf.position());
+                }
 
-            if (!(new String(buf.array(), "SJIS").equals(Head.HEADER_STRING))) {
-                throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.INVALID_HEADER"),
-                                                              inPath.getFileName()), (int)chan.position());
+                long offset = headBuf.position();
+                layout.headSize = headBuf.position();
+
+                pendingLayers = new PendingLayer[NUM_LAYERS];
+                for (int i = 0; i < tileLayers.length; ++i) {
+                    final ByteBuffer layerBuf = readRange(chan, offset, TileLayer.MAX_HEADER_SIZE);
+                    try {
+                        final int[] dimensions = readLayerHeader(layerBuf, i, inPath);
+                        offset += layerBuf.position();
+                        layout.setLayer(i, offset, dimensions[0], dimensions[1]);
+
+                        if (0 != dimensions[0] && 0 != dimensions[1]) {
+                            //the tiles aren't read now, so a file too short to hold them has to be caught here
+                            final long numTiles = (long)dimensions[0] * dimensions[1];
+                            if (offset + numTiles > size) {
+                                throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.UNEXPECTED_EOF"),
+                                                                              inPath.getFileName()),
+                                                         (int)Math.min(Integer.MAX_VALUE, size));
+                            }
+
+                            pendingLayers[i] = new PendingLayer(offset, dimensions[0], dimensions[1]);
+                            offset += numTiles;
+                        }
+                        else {
+                            tileLayers[i] = new TileLayer();
+                        }
+                    }
+                    catch (final BufferUnderflowException except) {
+                        throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.UNEXPECTED_EOF"),
+                                                                      inPath.getFileName()), (int)offset + layerBuf.position());
+                    }
+                }
+
+                layout.entityTableOffset = offset;
+                final ByteBuffer entityBuf = readRange(chan, offset,
+                                                       (int)Math.max(0, Math.min(size - offset, Entity.MAX_TABLE_SIZE)));
+                try {
+                    entities = readEntities(entityBuf);
+                }
+                catch (final BufferUnderflowException except) {
+                    throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.UNEXPECTED_EOF"),
+                                                                  inPath.getFileName()), (int)offset + entityBuf.position());
+                }
+
+                pendingFileSize = size;
+                layout.fileSize = size;
             }
 
-            final String description = readString(chan, Head.DESCRIPTION_MAX_LEN, "description");
+            savedLayout = layout;
+            markSaved();
+            return;
+        }
+
+        /*
+         * The whole file is read in with a single call and then decoded from one
+         * little-endian view, rather than issuing a read for every field
+         */
+        final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(inPath)).order(ByteOrder.LITTLE_ENDIAN);
 
-            final String[] mapnames = new String[Head.NUM_REF_MAPS];
-            for (int i = 0; i < mapnames.length; ++i) {
-                mapnames[i] = readString(chan, Head.FILENAME_MAX_LEN, "map name");
+        try {
+            head = readHead(buf, inPath);
+            layout.headSize = buf.position();
+
+            for (int i = 0; i < tileLayers.length; ++i) {
+                final int[] dimensions = readLayerHeader(buf, i, inPath);
+                layout.setLayer(i, buf.position(), dimensions[0], dimensions[1]);
+                if (0 != dimensions[0] && 0 != dimensions[1]) {
+                    tileLayers[i] = new TileLayer(dimensions[0], dimensions[1], buf);
+                }
+                else {
+                    tileLayers[i] = new TileLayer();
+                }
             }
 
-            final String spritesheetName = readString(chan, Head.FILENAME_MAX_LEN, "spritesheet name");
+            layout.entityTableOffset = buf.position();
+            entities = readEntities(buf);
+        }
+        catch (final BufferUnderflowException except) {
+            throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.UNEXPECTED_EOF"),
+                                                          inPath.getFileName()), buf.position());
+        }
 
-            buf = ByteBuffer.allocate(8);
-            chan.read(buf);
-            buf.flip();
+        layout.fileSize = buf.capacity();
+        savedLayout = layout;
+        markSaved();
+    }
+
+    /**
+     * Reads the head of a PXPACK file
+     *
+     * @param buf The {@code ByteBuffer} holding the PXPACK file's contents, positioned at its start
+     * @param inPath The path of the PXPACK file, used for exception messages
+     *
+     * @return The head that was read
+     *
+     * @throws IOException if a string in the head could not be decoded
+     * @throws ParseException if the head was somehow incorrect
+     */
+    private Head readHead(final ByteBuffer buf, final Path inPath) throws IOException, ParseException {
+        final byte[] headerBytes = new byte[Head.HEADER_STRING.length()];
+        buf.get(headerBytes);
 
-            final byte[] data = Arrays.copyOf(buf.array(), 5);
-            buf.position(buf.position() + 5);
+        if (!(new String(headerBytes, "SJIS").equals(Head.HEADER_STRING))) {
+            throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.INVALID_HEADER"),
+                                                          inPath.getFileName()), buf.position());
+        }
 
-            final int red = buf.get() & 0xFF;
-            final int green = buf.get() & 0xFF;
-            final int blue = buf.get() & 0xFF;
-            final Color bgColor = Color.rgb(red, green, blue);
+        final String description = readString(buf, Head.DESCRIPTION_MAX_LEN, "description");
 
-            final String[] tilesetNames = new String[NUM_LAYERS];
-            final byte[] visibilityTypes = new byte[NUM_LAYERS];
-            final byte[] scrollTypes = new byte[NUM_LAYERS];
-            for (int i = 0; i < tilesetNames.length; ++i) {
-                tilesetNames[i] = readString(chan, Head.FILENAME_MAX_LEN, "tileset name");
+        final String[] mapnames = new String[Head.NUM_REF_MAPS];
+        for (int i = 0; i < mapnames.length; ++i) {
+            mapnames[i] = readString(buf, Head.FILENAME_MAX_LEN, "map name");
+        }
 
-                if (0 == i && tilesetNames[i].isEmpty()) {
-                    throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.MISSING_FIRST_TILESET"),
-                                                                  inPath.getFileName()), (int)chan.position());
-                }
+        final String spritesheetName = readString(buf, Head.FILENAME_MAX_LEN, "spritesheet name");
 
-                buf = ByteBuffer.allocate(2);
-                chan.read(buf);
-                buf.flip();
+        final byte[] data = new byte[5];
+        buf.get(data);
+
+        final int red = buf.get() & 0xFF;
+        final int green = buf.get() & 0xFF;
+        final int blue = buf.get() & 0xFF;
+        final Color bgColor = Color.rgb(red, green, blue);
 
-                visibilityTypes[i] = buf.get();
-                scrollTypes[i] = buf.get();
+        final String[] tilesetNames = new String[NUM_LAYERS];
+        final byte[] visibilityTypes = new byte[NUM_LAYERS];
+        final byte[] scrollTypes = new byte[NUM_LAYERS];
+        for (int i = 0; i < tilesetNames.length; ++i) {
+            tilesetNames[i] = readString(buf, Head.FILENAME_MAX_LEN, "tileset name");
 
-                /*
-                 * First byte is a sort of visibility toggle
-                 *  - 0 -> invisible
-                 *  - 2 -> visible
-                 *  - 1 or >= 3 -> pulls wrong tiles from same tileset (offsets?)
-                 *  - > 32 -> game crashes
-                 *
-                 *  Second byte is scroll type (scroll.txt)
-                 */
+            if (0 == i && tilesetNames[i].isEmpty()) {
+                throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.MISSING_FIRST_TILESET"),
+                                                              inPath.getFileName()), buf.position());
             }
 
-            head = new Head(description, mapnames, spritesheetName, data, bgColor, tilesetNames, visibilityTypes, scrollTypes);
+            visibilityTypes[i] = buf.get();
+            scrollTypes[i] = buf.get();
 
-            tileLayers = new TileLayer[NUM_LAYERS];
+            /*
+             * First byte is a sort of visibility toggle
+             *  - 0 -> invisible
+             *  - 2 -> visible
+             *  - 1 or >= 3 -> pulls wrong tiles from same tileset (offsets?)
+             *  - > 32 -> game crashes
+             *
+             *  Second byte is scroll type (scroll.txt)
+             */
+        }
 
-            for (int i = 0; i < tileLayers.length; ++i) {
-                buf = ByteBuffer.allocate(TileLayer.HEADER_STRING.length());
-                chan.read(buf);
-                if (!(new String(buf.array()).equals(TileLayer.HEADER_STRING))) {
-                    throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.INVALID_LAYER_HEADER"),
-                                                                  i, inPath.getFileName()), (int)chan.position());
-                }
+        try {
+            return new Head(description, mapnames, spritesheetName, data, bgColor, tilesetNames, visibilityTypes, scrollTypes);
+        }
+        catch (final IllegalArgumentException except) {
+            //the values read in are checked by Head, e.g. the visibility and scroll types
+            throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.INVALID_HEAD"),
+                                                          inPath.getFileName(), except.getMessage()), buf.position());
+        }
+    }
 
-                buf = ByteBuffer.allocate(4);
-                buf.order(ByteOrder.LITTLE_ENDIAN);
-                chan.read(buf);
-                buf.flip();
+    /**
+     * Reads the header of a tile layer, leaving {@code buf} positioned at the layer's tiles
+     *
+     * @param buf The {@code ByteBuffer} holding the PXPACK file's contents, positioned at the layer's header
+     * @param layer The index of the layer being read, used for exception messages
+     * @param inPath The path of the PXPACK file, used for exception messages
+     *
+     * @return An array holding the width and the height of the layer, in that order
+     *
+     * @throws ParseException if the layer header was incorrect
+     */
+    private static int[] readLayerHeader(final ByteBuffer buf, final int layer, final Path inPath) throws ParseException {
+        final byte[] layerHeaderBytes = new byte[TileLayer.HEADER_STRING.length()];
+        buf.get(layerHeaderBytes);
+        if (!(new String(layerHeaderBytes).equals(TileLayer.HEADER_STRING))) {
+            throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.INVALID_LAYER_HEADER"),
+                                                          layer, inPath.getFileName()), buf.position());
+        }
 
-                final int width = buf.getShort() & 0xFFFF;
-                final int height = buf.getShort() & 0xFFFF;
-                if (width * height > 0) {
-                    //TODO: Find if it is ever not 0 (might've already checked but make sure)
-                    chan.position(chan.position() + 1); //skip a byte (always 0)
+        final int width = buf.getShort() & 0xFFFF;
+        final int height = buf.getShort() & 0xFFFF;
+        if (0 != width && 0 != height) {
+            //TODO: Find if it is ever not 0 (might've already checked but make sure)
+            buf.get(); //skip a byte (always 0)
+        }
 
-                    buf = ByteBuffer.allocate(width * height);
-                    chan.read(buf);
-                    buf.flip();
+        return new int[]{width, height};
+    }
 
-                    final int[][] tiles = new int[height][width];
-                    for (int y = 0; y < tiles.length; ++y) {
-                        for (int x = 0; x < tiles[y].length; ++x) {
-                            tiles[y][x] = buf.get() & 0xFF;
-                        }
-                    }
-                    tileLayers[i] = new TileLayer(tiles);
-                }
-                else {
-                    tileLayers[i] = new TileLayer();
-                }
-            }
+    /**
+     * Reads the entity table of a PXPACK file
+     *
+     * @param buf The {@code ByteBuffer} holding the PXPACK file's contents, positioned at the entity count
+     *
+     * @return The entities that were read
+     *
+     * @throws IOException if an entity's name could not be decoded
+     * @throws ParseException if an entity's name was incorrect
+     */
+    private EntityList readEntities(final ByteBuffer buf) throws IOException, ParseException {
+        final int numEntities = buf.getShort() & 0xFFFF;
 
-            buf = ByteBuffer.allocate(2);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-            chan.read(buf);
-            buf.flip();
+        final EntityList entities = new EntityList(numEntities);
 
-            final int numEntities = buf.getShort();
+        for (int i = 0; i < numEntities; ++i) {
+            final byte flag = buf.get();
 
-            entities = new ArrayList <>(numEntities);
+            final int type = buf.get() & 0xFF;
 
-            for (int i = 0; i < numEntities; ++i) {
-                buf = ByteBuffer.allocate(9);
-                buf.order(ByteOrder.LITTLE_ENDIAN);
-                chan.read(buf);
-                buf.flip();
+            final byte unknownByte = buf.get(); //index from tileset? subtype?
 
-                final byte flag = buf.get();
+            final int x = buf.getShort() & 0xFFFF;
+            final int y = buf.getShort() & 0xFFFF;
 
-                final int type = buf.get() & 0xFF;
+            final byte[] entityData = new byte[2];
+            buf.get(entityData);
 
-                final byte unknownByte = buf.get(); //index from tileset? subtype?
+            final String name = readString(buf, Entity.NAME_MAX_LEN, "entity name");
 
-                final int x = buf.getShort() & 0xFFFF;
-                final int y = buf.getShort() & 0xFFFF;
+            entities.add(new Entity(flag, type, unknownByte, x, y, entityData, name));
+        }
 
-                final byte[] entityData = new byte[2];
-                buf.get(entityData);
+        return entities;
+    }
 
-                final String name = readString(chan, Entity.NAME_MAX_LEN, "entity name");
+    /**
+     * Decodes the tiles of any layers that were left undecoded by a lazy open
+     *
+     * @throws IOException if there was an error reading the PXPACK file or it was
+     * changed since it was opened
+     */
+    private void loadPendingLayers() throws IOException {
+        if (null == pendingLayers) {
+            return;
+        }
 
-                entities.add(new Entity(flag, type, unknownByte, x, y, entityData, name));
+        try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (chan.size() != pendingFileSize) {
+                throw new IOException("PXPACK file " + path + " was changed since it was opened " +
+                                      "(size when opened: " + pendingFileSize + ", current size: " + chan.size() + ')');
+            }
+
+            for (int i = 0; i < pendingLayers.length; ++i) {
+                final PendingLayer pending = pendingLayers[i];
+                if (null == pending) {
+                    continue;
+                }
+
+                final long numTiles = (long)pending.width * pending.height;
+                if (numTiles > Integer.MAX_VALUE) {
+                    throw new IOException("Tile layer " + i + " of PXPACK file " + path + " is too large to be read in " +
+                                          "(width: " + pending.width + ", height: " + pending.height + ')');
+                }
+
+                final ByteBuffer buf = readRange(chan, pending.offset, (int)numTiles);
+                if (buf.remaining() != numTiles) {
+                    throw new IOException("PXPACK file " + path + " ended before tile layer " + i + " did " +
+                                          "(tiles expected: " + numTiles + ", tiles read: " + buf.remaining() + ')');
+                }
+                tileLayers[i] = new TileLayer(pending.width, pending.height, buf);
             }
         }
+
+        pendingLayers = null;
     }
 
     /**
-     * Saves the PXPACK file represented by this object
+     * Reads up to {@code length} bytes of {@code chan} starting from {@code position}
+     *
+     * @return A little-endian {@code ByteBuffer} holding the bytes that were read, which is
+     * short of {@code length} bytes if the end of the file was reached
+     */
+    private static ByteBuffer readRange(final FileChannel chan, final long position, final int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (-1 == chan.read(buf, position + buf.position())) {
+                break;
+            }
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Saves the PXPACK file represented by this object. The file is replaced atomically, so a
+     * crash while saving leaves either the old file or the new one.
      *
      * @throws IOException if there was an error saving the PXPACK file
+     *
+     * @see #save(AtomicFileBatch)
      */
     public void save() throws IOException {
-        try (SeekableByteChannel chan = Files.newByteChannel(path, StandardOpenOption.WRITE,
-                                                             StandardOpenOption.TRUNCATE_EXISTING,
-                                                             StandardOpenOption.CREATE)) {
-            ByteBuffer buf = ByteBuffer.wrap(Head.HEADER_STRING.getBytes("SJIS"));
-            chan.write(buf);
+        try (AtomicFileBatch batch = new AtomicFileBatch()) {
+            save(batch);
+            batch.commit();
+        }
+    }
 
-            writeString(chan, head.getDescription());
+    /**
+     * Stages the PXPACK file represented by this object to be saved when {@code batch} is committed.
+     *
+     * If the file on disk is unchanged since it was last read or written and every section still
+     * has the same size, only the sections that were changed are written, in place. They are
+     * journaled first, so an interrupted patch is finished the next time the file is opened.
+     * Otherwise, the whole file is written to a temporary file and put in place. Either way, nothing
+     * is written to the file itself until {@code batch} is committed.
+     *
+     * @param batch The {@code AtomicFileBatch} to stage the file in
+     *
+     * @throws IOException if there was an error writing the PXPACK file
+     */
+    public void save(final AtomicFileBatch batch) throws IOException {
+        NullArgumentException.Companion.requireNonNull(batch, "save", "batch");
 
-            for (final String map : head.getMapNames()) {
-                writeString(chan, map);
-            }
+        final SavedLayout layout = canPatch() ? savedLayout : null;
+        //if anything goes wrong partway through, the next save must write the whole file
+        savedLayout = null;
 
-            writeString(chan, head.getSpritesheetName());
+        if (null == layout) {
+            final SavedLayout newLayout = writeAll(batch);
+            batch.onCommit(() -> commitLayout(newLayout));
+        }
+        else {
+            batch.patch(path, filePatch -> patch(filePatch, layout));
+            batch.onCommit(() -> commitLayout(layout));
+        }
+    }
 
-            buf = ByteBuffer.wrap(head.getData());
-            chan.write(buf);
+    /**
+     * Records {@code layout} as what the file now looks like and marks every section as saved
+     */
+    private void commitLayout(final SavedLayout layout) {
+        try {
+            layout.lastModified = Files.getLastModifiedTime(path);
+        }
+        catch (final IOException except) {
+            //without the time the file can't be known to be unchanged, so the next save writes all of it
+            return;
+        }
 
-            buf = ByteBuffer.wrap(new byte[]{(byte)(head.getBgColor().getRed() * 255),
-                                             (byte)(head.getBgColor().getGreen() * 255),
-                                             (byte)(head.getBgColor().getBlue() * 255)});
-            chan.write(buf);
+        if (null != pendingLayers) {
+            pendingFileSize = layout.fileSize;
+        }
 
-            final String[] tilesetNames = head.getTilesetNames();
-            final byte[] visibilityTypes = head.getVisibilityTypes();
-            final byte[] scrollTypes = head.getScrollTypes();
-            for (int i = 0; i < tilesetNames.length; ++i) {
-                writeString(chan, tilesetNames[i]);
+        savedLayout = layout;
+        markSaved();
+    }
 
-                buf = ByteBuffer.allocate(2);
-                buf.put(visibilityTypes[i]);
-                buf.put(scrollTypes[i]);
-                buf.flip();
+    /**
+     * Stages the whole PXPACK file in {@code batch}. The exact size of the file is computed
+     * first so that it can be serialized into one buffer and written with a single call.
+     *
+     * @return The layout of the file that was written
+     */
+    private SavedLayout writeAll(final AtomicFileBatch batch) throws IOException {
+        loadPendingLayers();
 
-                chan.write(buf);
-            }
+        final SavedLayout layout = new SavedLayout();
 
-            for (final TileLayer layer : tileLayers) {
-                buf = ByteBuffer.wrap(TileLayer.HEADER_STRING.getBytes("SJIS"));
-                chan.write(buf);
+        long size = layout.headSize = head.byteSize();
+        for (int i = 0; i < tileLayers.length; ++i) {
+            final TileLayer layer = tileLayers[i];
+            layout.setLayer(i, size + TileLayer.HEADER_STRING.length() + 4 + (0 == layer.getWidth() ? 0 : 1),
+                            layer.getWidth(), layer.getHeight());
+            size += layer.byteSize();
+        }
+        layout.entityTableOffset = size;
+        size += entityTableSize();
 
-                final int[][] layerData = layer.getTiles();
-                if (null == layerData) {
-                    buf = ByteBuffer.allocate(4);
-                    buf.putShort((short)0).putShort((short)0);
-                    buf.flip();
+        if (Integer.MAX_VALUE < size) {
+            throw new IOException("Attempt to save PXPACK file larger than the max of " + Integer.MAX_VALUE +
+                                  " bytes (size: " + size + ')');
+        }
 
-                    chan.write(buf);
-                }
-                else {
-                    short width = (short)layerData[0].length;
-                    short height = (short)layerData.length;
+        final ByteBuffer buf = saveBuffer((int)size);
 
-                    buf = ByteBuffer.allocate(5);
-                    buf.order(ByteOrder.LITTLE_ENDIAN);
-                    buf.putShort(width).putShort(height).put((byte)0);
-                    buf.flip();
+        head.write(buf);
+        for (final TileLayer layer : tileLayers) {
+            layer.write(buf);
+        }
+        writeEntityTable(buf);
 
-                    chan.write(buf);
+        buf.flip();
+        batch.write(path, buf);
 
-                    buf = ByteBuffer.allocate((width & 0xFFFF) * (height & 0xFFFF)); //& 0xFFFF treats as unsigned when converted to int
-                    for (final int[] row : layerData) {
-                        for (final int tile : row) {
-                            buf.put((byte)tile);
-                        }
-                    }
-                    buf.flip();
-                    chan.write(buf);
-                }
-            }
+        layout.fileSize = size;
+        return layout;
+    }
 
-            buf = ByteBuffer.allocate(2);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-            buf.putShort((short)entities.size());
-            buf.flip();
+    /**
+     * Returns true if the file on disk is as it was last read or written and every section of
+     * this map is the same size as it is in the file, meaning the file can be patched in place
+     */
+    private boolean canPatch() throws IOException {
+        final SavedLayout layout = savedLayout;
+        if (null == layout || !Files.exists(path) ||
+            Files.size(path) != layout.fileSize || !Files.getLastModifiedTime(path).equals(layout.lastModified)) {
+            return false;
+        }
 
-            chan.write(buf);
+        if (head.byteSize() != layout.headSize) {
+            return false;
+        }
 
-            for (final Entity e : entities) {
-                buf = ByteBuffer.allocate(9);
-                buf.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < tileLayers.length; ++i) {
+            final int width, height;
+            if (null != pendingLayers && null != pendingLayers[i]) {
+                width = pendingLayers[i].width;
+                height = pendingLayers[i].height;
+            }
+            else {
+                width = tileLayers[i].getWidth();
+                height = tileLayers[i].getHeight();
+            }
 
-                buf.put(e.getFlag());
+            if (width != layout.layerWidths[i] || height != layout.layerHeights[i]) {
+                return false;
+            }
+        }
 
-                buf.put((byte)e.getType());
+        //the entity table is last in the file, so it can change size without moving anything
+        return true;
+    }
 
-                buf.put(e.getUnknownByte());
+    /**
+     * Writes only the changed sections of this map to {@code filePatch}, for the file as
+     * described by {@code layout}, and updates the file size in {@code layout}. Layers that
+     * were never decoded by a lazy open cannot have changed, so they are not loaded.
+     */
+    private void patch(final FilePatch filePatch, final SavedLayout layout) throws IOException {
+        if (headDirty) {
+            final ByteBuffer buf = saveBuffer(layout.headSize);
+            head.write(buf);
+            buf.flip();
+            filePatch.write(0, buf);
+        }
 
-                buf.putShort((short)e.getX());
-                buf.putShort((short)e.getY());
+        for (int i = 0; i < tileLayers.length; ++i) {
+            final TileLayer layer = tileLayers[i];
+            if (null != layer && layer.isDirty()) {
+                layer.patch(filePatch, layout.layerOffsets[i]);
+            }
+        }
 
-                buf.put(e.getData());
+        if (entitiesDirty || entities.isModified()) {
+            final int size = entityTableSize();
+            final ByteBuffer buf = saveBuffer(size);
+            writeEntityTable(buf);
+            buf.flip();
+            filePatch.write(layout.entityTableOffset, buf);
 
-                buf.flip();
-                chan.write(buf);
+            layout.fileSize = layout.entityTableOffset + size;
+            filePatch.truncate(layout.fileSize);
+        }
+    }
 
-                writeString(chan, e.getName());
+    /**
+     * Marks every section of this map as matching what is in its file
+     */
+    private void markSaved() {
+        headDirty = false;
+        entitiesDirty = false;
+        entities.markSaved();
+        for (final TileLayer layer : tileLayers) {
+            if (null != layer) {
+                layer.clearDirty();
             }
         }
     }
 
+    private int entityTableSize() throws IOException {
+        int size = 2; //entity count
+        for (final Entity e : entities) {
+            size += e.byteSize();
+        }
+        return size;
+    }
+
+    private void writeEntityTable(final ByteBuffer buf) throws IOException {
+        buf.putShort((short)entities.size());
+        for (final Entity e : entities) {
+            e.write(buf);
+        }
+    }
+
     public String getName() {
         return UtilsKt.baseFilename(path, GameData.mapExtension);
     }
@@ -350,7 +665,20 @@ public final class PxPack {
         return head;
     }
 
+    /**
+     * Returns the tile layers of this map, first decoding them if the map was opened lazily
+     *
+     * @throws UncheckedIOException if the map was opened lazily and there was an error
+     * reading the layers from the PXPACK file
+     */
     public TileLayer[] getTileLayers() {
+        try {
+            loadPendingLayers();
+        }
+        catch (final IOException except) {
+            throw new UncheckedIOException(except);
+        }
+
         //shallow copies elements, so elements are same, array reference is different
         return Arrays.copyOf(tileLayers, tileLayers.length);
     }
@@ -366,9 +694,26 @@ public final class PxPack {
     }
 
     /**
-     * Reads a string from a PXPACK file tied to a given FileChannel
+     * Returns the entities at the given tile, in the order they are in {@link #getEntities()}.
+     * Finding them only looks at the entities near the tile, rather than every entity in the map.
+     */
+    public ArrayList <Entity> getEntitiesAt(final int x, final int y) {
+        return entities.index().getAt(x, y);
+    }
+
+    /**
+     * Returns the entities within the rectangle with its top left corner at ({@code x}, {@code y}) and the
+     * given dimensions, in no particular order. Finding them only looks at the entities near the rectangle.
+     */
+    public ArrayList <Entity> getEntitiesIn(final int x, final int y, final int width, final int height) {
+        return entities.index().getIn(x, y, width, height);
+    }
+
+    /**
+     * Reads a string from the contents of a PXPACK file
      *
-     * @param chan The {@code SeekableByteChannel} object to read from
+     * @param buf The {@code ByteBuffer} holding the PXPACK file's contents, positioned
+     * at the length byte of the string to read
      * @param maxLen The maximum length for the string being read
      * @param type A {@code String} denoting the type of the string being read (what it is for).
      * Used to provide a descriptive exception message if the read string is of invalid length
@@ -376,43 +721,64 @@ public final class PxPack {
      *
      * @return The string that was read
      *
-     * @throws IOException if there was an error reading the string from the PXPACK file
+     * @throws IOException if the string could not be decoded
      * @throws ParseException if the string was too long (as per {@code maxLen} or contained spaces
      */
-    private String readString(final SeekableByteChannel chan, final int maxLen, final String type)
+    private String readString(final ByteBuffer buf, final int maxLen, final String type)
             throws IOException, ParseException {
-        ByteBuffer buf = ByteBuffer.allocate(1);
-        chan.read(buf);
-        buf.flip();
-
         final int strLen = buf.get() & 0xFF;
         if (maxLen < strLen) {
             throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.ReadString.INVALID_LEN"),
-                                                          type, maxLen, strLen), (int)chan.position());
+                                                          type, maxLen, strLen), buf.position());
         }
 
-        buf = ByteBuffer.allocate(strLen);
-        chan.read(buf);
+        final byte[] strBytes = new byte[strLen];
+        buf.get(strBytes);
 
-        final String str = new String(buf.array(), "SJIS");
+        final String str = new String(strBytes, "SJIS");
         if (!"description".equals(type) && str.contains(" ")) {
             throw new ParseException(MessageFormat.format(Messages.INSTANCE.get("PxPack.ReadString.CONTAINS_SPACE"),
-                                                          type), (int)chan.position());
+                                                          type), buf.position());
         }
 
         return str;
     }
 
-    private void writeString(final SeekableByteChannel chan, final String str) throws IOException {
+    /**
+     * Returns a cleared, little-endian direct {@code ByteBuffer} with a limit of {@code size}.
+     * The buffer is pooled per thread and only reallocated when a larger one is needed, so
+     * repeated saves do not allocate a new buffer every time.
+     *
+     * @param size The number of bytes that will be written to the buffer
+     *
+     * @return The pooled buffer for the calling thread
+     */
+    private static ByteBuffer saveBuffer(final int size) {
+        ByteBuffer buf = SAVE_BUFFER.get();
+        if (null == buf || buf.capacity() < size) {
+            buf = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+            SAVE_BUFFER.set(buf);
+        }
+
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Returns the number of bytes {@code str} takes up in a PXPACK file,
+     * including its length byte
+     */
+    private static int stringSize(final String str) throws IOException {
+        return 1 + str.getBytes("SJIS").length;
+    }
+
+    private static void putString(final ByteBuffer buf, final String str) throws IOException {
         //TODO: test with 0 len str
         final byte[] strAsBytes = str.getBytes("SJIS");
-        final ByteBuffer buf = ByteBuffer.allocate(1 + strAsBytes.length);
 
         buf.put((byte)strAsBytes.length);
         buf.put(strAsBytes);
-        buf.flip();
-
-        chan.write(buf);
     }
 
     @Override
@@ -423,7 +789,7 @@ public final class PxPack {
 
         result.append(head).append('\n');
 
-        for (final TileLayer layer : tileLayers) {
+        for (final TileLayer layer : getTileLayers()) {
             result.append(layer).append('\n');
         }
         for (final Entity entity : entities) {
@@ -442,6 +808,10 @@ public final class PxPack {
 
         static final String HEADER_STRING = "PXPACK121127a**\0";
 
+        //header, strings with their length bytes, data bytes, background color, and layer properties
+        static final int MAX_BYTE_SIZE = 16 + (1 + DESCRIPTION_MAX_LEN) + (NUM_REF_MAPS * (1 + FILENAME_MAX_LEN)) +
+                                         (1 + FILENAME_MAX_LEN) + 5 + 3 + (NUM_LAYERS * (1 + FILENAME_MAX_LEN + 2));
+
         private String description;
         private final String[] mapnames;
         private String spritesheetName;
@@ -555,6 +925,7 @@ public final class PxPack {
                                                    " (description: " + description + ')');
             }
             this.description = description;
+            headDirty = true;
         }
 
         public void setMapname(final int index, final String mapname) {
@@ -573,6 +944,7 @@ public final class PxPack {
                                                          "(index: " + index + ')');
             }
             this.mapnames[index] = mapname;
+            headDirty = true;
         }
 
         public void setSpritesheetName(final String spritesheetName) {
@@ -587,6 +959,7 @@ public final class PxPack {
                                                    "(spritesheetName: " + spritesheetName + ')');
             }
             this.spritesheetName = spritesheetName;
+            headDirty = true;
         }
 
         public void setData(final int index, final byte unknownByte) {
@@ -597,6 +970,7 @@ public final class PxPack {
 
             //TODO: validate (how?)
             data[index] = unknownByte;
+            headDirty = true;
         }
 
         public void setBgColor(final Color color) {
@@ -607,6 +981,7 @@ public final class PxPack {
                                                    "(color: " + color + ')');
             }
             bgColor = color;
+            headDirty = true;
         }
 
         public void setTilesetName(final int index, final String tilesetName) {
@@ -629,6 +1004,7 @@ public final class PxPack {
                                                          "(index: " + index + ')');
             }
             this.tilesetNames[index] = tilesetName;
+            headDirty = true;
         }
 
         public void setVisibilityType(final int index, final byte visibilityType) {
@@ -641,6 +1017,7 @@ public final class PxPack {
                                                          "(index: " + index + ')');
             }
             visibilityTypes[index] = visibilityType;
+            headDirty = true;
         }
 
         public void setScrollType(final int index, final byte scrollType) {
@@ -653,6 +1030,46 @@ public final class PxPack {
                                                          "(index: " + index + ')');
             }
             scrollTypes[index] = scrollType;
+            headDirty = true;
+        }
+
+        /**
+         * Returns the number of bytes this head takes up in a PXPACK file
+         */
+        int byteSize() throws IOException {
+            int size = HEADER_STRING.length() + stringSize(description);
+            for (final String mapname : mapnames) {
+                size += stringSize(mapname);
+            }
+            size += stringSize(spritesheetName) + data.length + 3; //3 for bgColor
+            for (final String tilesetName : tilesetNames) {
+                size += stringSize(tilesetName) + 2; //2 for visibility & scroll type
+            }
+            return size;
+        }
+
+        /**
+         * Writes this head to {@code buf} as it appears in a PXPACK file
+         */
+        void write(final ByteBuffer buf) throws IOException {
+            buf.put(HEADER_STRING.getBytes("SJIS"));
+
+            putString(buf, description);
+            for (final String mapname : mapnames) {
+                putString(buf, mapname);
+            }
+            putString(buf, spritesheetName);
+
+            buf.put(data);
+
+            buf.put((byte)(bgColor.getRed() * 255))
+               .put((byte)(bgColor.getGreen() * 255))
+               .put((byte)(bgColor.getBlue() * 255));
+
+            for (int i = 0; i < tilesetNames.length; ++i) {
+                putString(buf, tilesetNames[i]);
+                buf.put(visibilityTypes[i]).put(scrollTypes[i]);
+            }
         }
 
         @Override
@@ -681,38 +1098,263 @@ public final class PxPack {
         }
     }
 
+    /**
+     * The list of entities handed out by {@link #getEntities()}. Additions, removals and replacements
+     * change the entity table, so they are tracked here to know when it has to be saved.
+     *
+     * The list also keeps an {@code EntityIndex} of its entities. Moves are applied to the index as
+     * they happen, but any addition, removal or replacement makes the index stale, and it is rebuilt
+     * the next time it is used. This catches every way of changing the list, including through its
+     * iterators and sublists - {@code ArrayList}'s sublists replace elements without going through
+     * {@link #set(int, Entity)}, so {@link #subList(int, int)} returns a view that does.
+     */
+    private static final class EntityList extends ArrayList <Entity> {
+        private int savedModCount;
+        private boolean replaced;
+
+        private final EntityIndex index = new EntityIndex();
+        private int indexedModCount = -1;
+        private boolean indexStale = true;
+
+        EntityList() {
+            super();
+        }
+
+        EntityList(final int initialCapacity) {
+            super(initialCapacity);
+        }
+
+        @Override
+        public Entity set(final int index, final Entity element) {
+            replaced = true;
+            indexStale = true;
+            return super.set(index, element);
+        }
+
+        @Override
+        public List <Entity> subList(final int fromIndex, final int toIndex) {
+            return new SubList(super.subList(fromIndex, toIndex), fromIndex);
+        }
+
+        /**
+         * A view of part of an {@code EntityList} that replaces elements through {@link EntityList#set(int, Entity)},
+         * and leaves everything else to a sublist of the {@code ArrayList}
+         */
+        private final class SubList extends AbstractList <Entity> implements RandomAccess {
+            private final List <Entity> view;
+            private final int offset;
+
+            SubList(final List <Entity> view, final int offset) {
+                this.view = view;
+                this.offset = offset;
+            }
+
+            @Override
+            public Entity get(final int index) {
+                return view.get(index);
+            }
+
+            @Override
+            public Entity set(final int index, final Entity element) {
+                //checks the index and that the list wasn't changed out from under this view
+                view.get(index);
+                return EntityList.this.set(offset + index, element);
+            }
+
+            @Override
+            public void add(final int index, final Entity element) {
+                view.add(index, element);
+                ++modCount;
+            }
+
+            @Override
+            public Entity remove(final int index) {
+                final Entity result = view.remove(index);
+                ++modCount;
+                return result;
+            }
+
+            @Override
+            protected void removeRange(final int fromIndex, final int toIndex) {
+                view.subList(fromIndex, toIndex).clear();
+                ++modCount;
+            }
+
+            @Override
+            public int size() {
+                return view.size();
+            }
+
+            @Override
+            public List <Entity> subList(final int fromIndex, final int toIndex) {
+                return new SubList(view.subList(fromIndex, toIndex), offset + fromIndex);
+            }
+        }
+
+        /**
+         * Returns the index of the entities in this list, rebuilding it first if it is stale
+         */
+        EntityIndex index() {
+            if (indexStale || modCount != indexedModCount) {
+                index.clear();
+                for (int i = 0; i < size(); ++i) {
+                    final Entity e = get(i);
+                    if (null != e) {
+                        index.add(e, i);
+                    }
+                }
+                indexStale = false;
+                indexedModCount = modCount;
+            }
+            return index;
+        }
+
+        /**
+         * Updates the index after {@code entity} moved from ({@code oldX}, {@code oldY})
+         */
+        void entityMoved(final Entity entity, final int oldX, final int oldY) {
+            //a stale index is rebuilt from the current coordinates anyway
+            if (!indexStale && modCount == indexedModCount) {
+                index.move(entity, oldX, oldY);
+            }
+        }
+
+        boolean isModified() {
+            return replaced || modCount != savedModCount;
+        }
+
+        void markSaved() {
+            replaced = false;
+            savedModCount = modCount;
+        }
+    }
+
+    /**
+     * Where each section of a PXPACK file is and how big it is
+     */
+    private static final class SavedLayout {
+        private long fileSize;
+        private FileTime lastModified;
+
+        private int headSize;
+
+        //offset of each layer's tiles and the layer's dimensions
+        private final long[] layerOffsets = new long[NUM_LAYERS];
+        private final int[] layerWidths = new int[NUM_LAYERS];
+        private final int[] layerHeights = new int[NUM_LAYERS];
+
+        private long entityTableOffset;
+
+        private void setLayer(final int layer, final long tilesOffset, final int width, final int height) {
+            //0 by 0 is used for any layer with a dimension of 0, as it is in TileLayer
+            final boolean empty = 0 == width || 0 == height;
+            layerOffsets[layer] = tilesOffset;
+            layerWidths[layer] = empty ? 0 : width;
+            layerHeights[layer] = empty ? 0 : height;
+        }
+    }
+
+    /**
+     * The location in the PXPACK file of a tile layer that was not decoded by a lazy open
+     */
+    private static final class PendingLayer {
+        private final long offset;
+        private final int width;
+        private final int height;
+
+        private PendingLayer(final long offset, final int width, final int height) {
+            this.offset = offset;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * The state of a {@link TileLayer} before it was resized, used to undo the resize
+     */
+    public static final class TileLayerSnapshot {
+        private final ChunkedTileStore.Snapshot snapshot;
+
+        private TileLayerSnapshot(final ChunkedTileStore.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Returns the width the layer had before it was resized
+         */
+        public int getWidth() {
+            return snapshot.getWidth();
+        }
+
+        /**
+         * Returns the height the layer had before it was resized
+         */
+        public int getHeight() {
+            return snapshot.getHeight();
+        }
+
+        /**
+         * Returns roughly how many bytes of cropped-off tiles this snapshot holds on to
+         */
+        public long getByteSize() {
+            return snapshot.getByteSize();
+        }
+    }
+
     public final class TileLayer {
         static final String HEADER_STRING = "pxMAP01\0";
 
-        private int[][] tiles;
+        //header, width, height, and the skipped byte
+        static final int MAX_HEADER_SIZE = 8 + 2 + 2 + 1;
+
+        /*
+         * Tiles are stored as they are on disk - one unsigned byte each - but in
+         * chunks so that large, mostly empty layers stay small in memory. Either
+         * both dimensions are 0 or neither is.
+         */
+        private final ChunkedTileStore tiles;
+
+        //the range of rows changed since the layer was last read or written, empty if dirtyTop > dirtyBottom
+        private int dirtyTop = Integer.MAX_VALUE;
+        private int dirtyBottom = -1;
 
         TileLayer() {
-            tiles = null;
+            tiles = new ChunkedTileStore(0, 0);
         }
 
-        TileLayer(final int[][] tiles) {
-            if (null != tiles && 0 < tiles.length) {
-                final int height = tiles.length;
-                final int width = tiles[0].length;
-                if (0xFFFF < width || 0xFFFF < height) {
-                    throw new IllegalArgumentException("Attempt to create tile layer with dimensions greater than max of 65,535 " +
-                                                       "(width: " + width + ", height: " + height + ')');
-                }
+        /**
+         * Constructs a layer with the given dimensions whose tiles are read from {@code buf}
+         *
+         * @param width The width of the layer
+         * @param height The height of the layer
+         * @param buf A {@code ByteBuffer} positioned at {@code width * height} bytes of row-major tiles
+         */
+        TileLayer(final int width, final int height, final ByteBuffer buf) {
+            if (0xFFFF < width || 0xFFFF < height) {
+                throw new IllegalArgumentException("Attempt to create tile layer with dimensions greater than max of 65,535 " +
+                                                   "(width: " + width + ", height: " + height + ')');
+            }
 
-                this.tiles = new int[height][width];
-                for (int y = 0; y < height; ++y) {
-                    System.arraycopy(tiles[y], 0, this.tiles[y], 0, width);
-                }
+            if (0 == width || 0 == height) {
+                tiles = new ChunkedTileStore(0, 0);
+            }
+            else {
+                tiles = new ChunkedTileStore(width, height);
+                tiles.read(buf);
             }
         }
 
         /**
-         * Resizes the layer's dimensions
+         * Resizes the layer's dimensions. Parts of the layer that are kept are
+         * reused in place rather than copied.
          *
          * @param width The new width for the layer
          * @param height The new height for the layer
+         *
+         * @return A {@code TileLayerSnapshot} that can be passed to {@link #restore(TileLayerSnapshot)}
+         * to undo this resize. It holds on to the tiles that were cropped off by the resize and nothing else.
          */
-        public void resize(final int width, final int height) {
+        public TileLayerSnapshot resize(final int width, final int height) {
             if (0 > width || 0 > height) {
                 throw new IllegalArgumentException("Attempt to resize tile layer to have negative dimensions " +
                                                    "(width: " + width + ", height: " + height + ')');
@@ -722,45 +1364,98 @@ public final class PxPack {
                                                    "(width: " + width + ", height: " + height + ')');
             }
 
-            if (null == tiles) {
-                tiles = new int[height][width];
-                return;
-            }
+            final TileLayerSnapshot snapshot = new TileLayerSnapshot(0 == width || 0 == height ?
+                                                                     tiles.resize(0, 0) : tiles.resize(width, height));
+            markAllDirty();
+            return snapshot;
+        }
 
-            if (width == tiles[0].length && height == tiles.length) {
-                return;
-            }
+        /**
+         * Puts the layer back to how it was before the resize that returned {@code snapshot}.
+         * Every change made to the layer since that resize must have already been undone.
+         *
+         * @param snapshot The {@code TileLayerSnapshot} returned by a call to {@link #resize(int, int)}
+         *
+         * @throws IllegalArgumentException if {@code snapshot} was not returned by a resize of this layer
+         */
+        public void restore(final TileLayerSnapshot snapshot) {
+            NullArgumentException.Companion.requireNonNull(snapshot, "restore", "snapshot");
+            tiles.restore(snapshot.snapshot);
+            markAllDirty();
+        }
 
-            if (0 == width || 0 == height) {
-                tiles = null;
-                return;
-            }
+        public int getWidth() {
+            return tiles.getWidth();
+        }
 
-            final int[][] oldTiles = new int[tiles.length][tiles[0].length];
-            for (int y = 0; y < tiles.length; ++y) {
-                System.arraycopy(tiles[y], 0, oldTiles[y], 0, tiles[y].length);
-            }
+        public int getHeight() {
+            return tiles.getHeight();
+        }
 
-            tiles = new int[height][width];
+        /**
+         * Returns the tile at the given coordinates without copying the layer
+         *
+         * @param x The x coordinate of the tile
+         * @param y The y coordinate of the tile
+         *
+         * @return The tile at ({@code x}, {@code y}), in the range 0 - 255
+         */
+        public int getTile(final int x, final int y) {
+            if (0 > x || tiles.getWidth() <= x || 0 > y || tiles.getHeight() <= y) {
+                throw new ArrayIndexOutOfBoundsException("Attempt to get tile when coordinates are out of bounds " +
+                                                         "(x: " + x + ", y: " + y + ')');
+            }
+            return tiles.get(x, y);
+        }
 
-            //loop & copy for each index in smaller dimension
-            int yBound = height < oldTiles.length ? height : oldTiles.length;
-            int xBound = width < oldTiles[0].length ? width : oldTiles[0].length;
+        /**
+         * Copies a rectangular region of this layer into {@code dst}, such that {@code dst[0][0]}
+         * holds the tile at ({@code x}, {@code y}). Only the region is touched, so this is cheap
+         * compared to {@link #getTiles()} for reading part of a large layer.
+         *
+         * @param x The x coordinate of the top-left corner of the region
+         * @param y The y coordinate of the top-left corner of the region
+         * @param regionWidth The width of the region
+         * @param regionHeight The height of the region
+         * @param dst The array to copy into. Must have at least {@code regionHeight} rows,
+         * each with a length of at least {@code regionWidth}.
+         */
+        public void copyRegion(final int x, final int y, final int regionWidth, final int regionHeight,
+                               final int[][] dst) {
+            NullArgumentException.Companion.requireNonNull(dst, "copyRegion", "dst");
+            if (0 > regionWidth || 0 > regionHeight) {
+                throw new IllegalArgumentException("Attempt to copy region with negative dimensions " +
+                                                   "(width: " + regionWidth + ", height: " + regionHeight + ')');
+            }
+            if (0 > x || tiles.getWidth() < x + regionWidth || 0 > y || tiles.getHeight() < y + regionHeight) {
+                throw new ArrayIndexOutOfBoundsException("Attempt to copy region that is out of bounds " +
+                                                         "(x: " + x + ", y: " + y + ", width: " + regionWidth +
+                                                         ", height: " + regionHeight + ')');
+            }
 
-            for (int y = 0; y < yBound; ++y) {
-                System.arraycopy(oldTiles[y], 0, tiles[y], 0, xBound);
+            for (int r = 0; r < regionHeight; ++r) {
+                final int[] row = dst[r];
+                for (int c = 0; c < regionWidth; ++c) {
+                    row[c] = tiles.get(x + c, y + r);
+                }
             }
         }
 
+        /**
+         * Returns a copy of every tile in this layer, or null if the layer is empty.
+         * As this copies the whole layer, prefer {@link #getTile(int, int)} or
+         * {@link #copyRegion(int, int, int, int, int[][])} for reads.
+         */
         public int[][] getTiles() {
-            if (null != tiles) {
-                final int[][] tilesCopy = new int[tiles.length][tiles[0].length];
-                for (int y = 0; y < tiles.length; ++y) {
-                    System.arraycopy(tiles[y], 0, tilesCopy[y], 0, tiles[y].length);
-                }
-                return tilesCopy;
+            final int width = tiles.getWidth();
+            final int height = tiles.getHeight();
+            if (0 == width) {
+                return null;
             }
-            return null;
+
+            final int[][] tilesCopy = new int[height][width];
+            copyRegion(0, 0, width, height, tilesCopy);
+            return tilesCopy;
         }
 
         public void setTile(final int x, final int y, final int tile) {
@@ -768,24 +1463,159 @@ public final class PxPack {
                 throw new IllegalArgumentException("Attempt to set tile at (" + x + ", " + y + ") " +
                                                    "to value outside range 0 - 255 (tile: " + tile + ')');
             }
-            tiles[y][x] = tile;
+            if (0 > x || tiles.getWidth() <= x || 0 > y || tiles.getHeight() <= y) {
+                throw new ArrayIndexOutOfBoundsException("Attempt to set tile when coordinates are out of bounds " +
+                                                         "(x: " + x + ", y: " + y + ')');
+            }
+            tiles.set(x, y, tile);
+
+            dirtyTop = Math.min(dirtyTop, y);
+            dirtyBottom = Math.max(dirtyBottom, y);
+        }
+
+        /**
+         * Sets every tile connected to the one at ({@code x}, {@code y}) that has the same value as it to
+         * {@code tile}, where tiles are connected to the tiles above, below, left, and right of them
+         *
+         * @return A {@code TileDelta} of the tiles that were changed, which is empty if the
+         * tile at ({@code x}, {@code y}) was already {@code tile}
+         */
+        public TileDelta floodFill(final int x, final int y, final int tile) {
+            if (0 > tile || 0xFF < tile) {
+                throw new IllegalArgumentException("Attempt to fill tiles from (" + x + ", " + y + ") " +
+                                                   "with value outside range 0 - 255 (tile: " + tile + ')');
+            }
+            if (0 > x || tiles.getWidth() <= x || 0 > y || tiles.getHeight() <= y) {
+                throw new ArrayIndexOutOfBoundsException("Attempt to fill tiles when coordinates are out of bounds " +
+                                                         "(x: " + x + ", y: " + y + ')');
+            }
+
+            final TileDelta delta = FloodFill.fill(tiles, x, y, tile);
+            if (!delta.isEmpty()) {
+                dirtyTop = Math.min(dirtyTop, delta.getY());
+                dirtyBottom = Math.max(dirtyBottom, delta.getY() + delta.getHeight() - 1);
+            }
+            return delta;
+        }
+
+        /**
+         * Replaces every {@code from} tile in this layer with {@code to}. Large layers are
+         * replaced a band of rows at a time in parallel.
+         *
+         * @return A {@code TileReplacement} of the tiles that were replaced, which is
+         * empty if there were none or {@code from} and {@code to} are the same
+         */
+        public TileReplacement replaceAll(final int from, final int to) {
+            if (0 > from || 0xFF < from || 0 > to || 0xFF < to) {
+                throw new IllegalArgumentException("Attempt to replace tiles with values outside range 0 - 255 " +
+                                                   "(from: " + from + ", to: " + to + ')');
+            }
+
+            final TileReplacement replacement = TileReplacement.replace(tiles, from, to);
+            if (!replacement.isEmpty()) {
+                dirtyTop = Math.min(dirtyTop, replacement.getY());
+                dirtyBottom = Math.max(dirtyBottom, replacement.getY() + replacement.getHeight() - 1);
+            }
+            return replacement;
+        }
+
+        /**
+         * Sets each tile in row {@code y} of the chunks in column {@code cx} whose bit is set
+         * in {@code mask} to {@code tile}, as per {@link ChunkedTileStore#setMasked(int, int, long, int)}
+         */
+        void setMasked(final int cx, final int y, final long mask, final int tile) {
+            tiles.setMasked(cx, y, mask, tile);
+
+            dirtyTop = Math.min(dirtyTop, y);
+            dirtyBottom = Math.max(dirtyBottom, y);
+        }
+
+        /**
+         * Sets the {@code length} tiles from ({@code x}, {@code y}) rightwards to {@code tile},
+         * which are assumed to be within the layer
+         */
+        void fillRow(final int x, final int y, final int length, final int tile) {
+            tiles.fillRow(y, x, x + length, tile);
+
+            dirtyTop = Math.min(dirtyTop, y);
+            dirtyBottom = Math.max(dirtyBottom, y);
+        }
+
+        private void markAllDirty() {
+            dirtyTop = 0;
+            dirtyBottom = tiles.getHeight() - 1;
+        }
+
+        boolean isDirty() {
+            return dirtyTop <= dirtyBottom;
+        }
+
+        void clearDirty() {
+            dirtyTop = Integer.MAX_VALUE;
+            dirtyBottom = -1;
+        }
+
+        /**
+         * Writes the changed rows of this layer over the file, one band of chunk rows at a time
+         *
+         * @param filePatch The {@code FilePatch} of the PXPACK file
+         * @param tilesOffset The offset of this layer's tiles in the file
+         */
+        void patch(final FilePatch filePatch, final long tilesOffset) throws IOException {
+            final int width = tiles.getWidth();
+            for (int y = dirtyTop; y <= dirtyBottom; ) {
+                final int bandEnd = Math.min(dirtyBottom + 1, ((y >> ChunkedTileStore.CHUNK_SHIFT) + 1) << ChunkedTileStore.CHUNK_SHIFT);
+
+                final ByteBuffer buf = saveBuffer((bandEnd - y) * width);
+                tiles.writeRows(buf, y, bandEnd);
+                buf.flip();
+                filePatch.write(tilesOffset + ((long)y * width), buf);
+
+                y = bandEnd;
+            }
+        }
+
+        /**
+         * Returns the number of bytes this layer takes up in a PXPACK file
+         */
+        long byteSize() {
+            final long numTiles = (long)tiles.getWidth() * tiles.getHeight();
+            //header, width, height, and if not empty, the skipped byte and the tiles
+            return HEADER_STRING.length() + 4 + (0 == numTiles ? 0 : 1 + numTiles);
+        }
+
+        /**
+         * Writes this layer to {@code buf} as it appears in a PXPACK file
+         */
+        void write(final ByteBuffer buf) throws IOException {
+            buf.put(HEADER_STRING.getBytes("SJIS"));
+
+            if (0 == tiles.getWidth()) {
+                buf.putShort((short)0).putShort((short)0);
+                return;
+            }
+
+            buf.putShort((short)tiles.getWidth()).putShort((short)tiles.getHeight()).put((byte)0);
+            tiles.write(buf);
         }
 
         @Override
         public String toString() {
             final StringBuilder result = new StringBuilder();
 
-            if (null == tiles) {
+            final int width = tiles.getWidth();
+            final int height = tiles.getHeight();
+            if (0 == width) {
                 result.append("Width: 00\n")
                       .append("Height: 00\n");
             }
             else {
-                result.append(String.format("\tWidth: %02X\n", tiles[0].length))
-                      .append(String.format("\tHeight: %02X\n", tiles.length));
-                for (final int[] row : tiles) {
+                result.append(String.format("\tWidth: %02X\n", width))
+                      .append(String.format("\tHeight: %02X\n", height));
+                for (int y = 0; y < height; ++y) {
                     result.append('\t');
-                    for (final int tile : row) {
-                        result.append(String.format("%02X ", tile));
+                    for (int x = 0; x < width; ++x) {
+                        result.append(String.format("%02X ", tiles.get(x, y)));
                     }
                     result.append('\n');
                 }
@@ -797,6 +1627,9 @@ public final class PxPack {
     public final class Entity {
         public static final int NAME_MAX_LEN = 15;
 
+        //entity count followed by the max number of entities with the longest names possible
+        static final int MAX_TABLE_SIZE = 2 + (0xFFFF * (9 + 1 + NAME_MAX_LEN));
+
         private static final int NUM_TYPES = 175;
 
         private int type;
@@ -855,6 +1688,7 @@ public final class PxPack {
 
         public void setFlag(final byte flag) {
             this.flag = flag;
+            entitiesDirty = true;
         }
 
         public void setType(final int type) {
@@ -866,10 +1700,12 @@ public final class PxPack {
                                                    "(type: " + type + ')');
             }
             this.type = type;
+            entitiesDirty = true;
         }
 
         public void setUnknownByte(final byte unknownByte) {
             this.unknownByte = unknownByte;
+            entitiesDirty = true;
         }
 
         public void setX(final int x) {
@@ -877,7 +1713,10 @@ public final class PxPack {
                 throw new IllegalArgumentException("Attempt to set x coordinate to value outside range 0 - 65,535 " +
                                                    "(x: " + x + ')');
             }
+            final int oldX = this.x;
             this.x = x;
+            entitiesDirty = true;
+            movedFrom(oldX, y);
         }
 
         public void setY(final int y) {
@@ -885,7 +1724,10 @@ public final class PxPack {
                 throw new IllegalArgumentException("Attempt to set y coordinate to value outside range 0 - 65,535 " +
                                                    "(y: " + y + ')');
             }
+            final int oldY = this.y;
             this.y = y;
+            entitiesDirty = true;
+            movedFrom(x, oldY);
         }
 
         public void setCoordinates(final int x, final int y) {
@@ -893,12 +1735,20 @@ public final class PxPack {
             setY(y);
         }
 
+        private void movedFrom(final int oldX, final int oldY) {
+            //entities are created before the list they are read into is given to the map
+            if (null != entities) {
+                entities.entityMoved(this, oldX, oldY);
+            }
+        }
+
         public void setData(final int index, final byte data) {
             if (0 > index || this.data.length <= index) {
                 throw new ArrayIndexOutOfBoundsException("Attempt to set data when index arg is out of bounds " +
                                                          "(index: " + index + ')');
             }
             this.data[index] = data;
+            entitiesDirty = true;
         }
 
         public void setName(final String entityName) {
@@ -912,6 +1762,24 @@ public final class PxPack {
                 throw new IllegalArgumentException("Attempt to set entityName when arg has spaces when spaces are not allowed");
             }
             this.name = entityName;
+            entitiesDirty = true;
+        }
+
+        /**
+         * Returns the number of bytes this entity takes up in a PXPACK file
+         */
+        int byteSize() throws IOException {
+            return 7 + data.length + stringSize(name);
+        }
+
+        /**
+         * Writes this entity to {@code buf} as it appears in a PXPACK file
+         */
+        void write(final ByteBuffer buf) throws IOException {
+            buf.put(flag).put((byte)type).put(unknownByte);
+            buf.putShort((short)x).putShort((short)y);
+            buf.put(data);
+            putString(buf, name);
         }
 
         @Override
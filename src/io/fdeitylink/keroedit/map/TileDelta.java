@@ -0,0 +1,438 @@
+package io.fdeitylink.keroedit.map;
+
+import java.util.Arrays;
+
+import java.io.IOException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+import io.fdeitylink.util.NullArgumentException;
+
+/**
+ * The tiles changed by an edit to a {@link PxPack.TileLayer}, stored compactly enough that many
+ * of them can be kept around for undoing. Only tiles whose value actually changed are recorded,
+ * as runs of changed tiles along a row. Each run stores its old and new tiles one byte each, or
+ * a single byte for either if they are all the same, so replacing a long run of one tile with
+ * another costs only a few bytes.
+ *
+ * Instances are built with a {@link Builder}.
+ */
+public final class TileDelta {
+    //a run whose old (or new) tiles are all the same only stores one of them
+    private static final int UNIFORM_OLD = 1;
+    private static final int UNIFORM_NEW = 1 << 1;
+
+    //object header, array headers, and fields, roughly
+    private static final int OVERHEAD = 64;
+
+    /*
+     * Two ints per run: x | (y << 16), then length | (flags << 16). The old and then
+     * the new tiles of each run follow those of the run before it in data.
+     */
+    private final int[] runs;
+    private final byte[] data;
+
+    private final int size;
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    private TileDelta(final int[] runs, final byte[] data, final int size,
+                      final int x, final int y, final int width, final int height) {
+        this.runs = runs;
+        this.data = data;
+        this.size = size;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Sets every tile in this delta to its new value in {@code layer}
+     *
+     * @throws ArrayIndexOutOfBoundsException if a tile in this delta is not within {@code layer}
+     */
+    public void apply(final PxPack.TileLayer layer) {
+        NullArgumentException.Companion.requireNonNull(layer, "apply", "layer");
+        write(layer, true);
+    }
+
+    /**
+     * Sets every tile in this delta back to its old value in {@code layer}
+     *
+     * @throws ArrayIndexOutOfBoundsException if a tile in this delta is not within {@code layer}
+     */
+    public void revert(final PxPack.TileLayer layer) {
+        NullArgumentException.Companion.requireNonNull(layer, "revert", "layer");
+        write(layer, false);
+    }
+
+    private void write(final PxPack.TileLayer layer, final boolean newTiles) {
+        int offset = 0;
+        for (int i = 0; i < runs.length; i += 2) {
+            final int runX = runs[i] & 0xFFFF;
+            final int runY = runs[i] >>> 16;
+            final int length = runs[i + 1] & 0xFFFF;
+            final int flags = runs[i + 1] >>> 16;
+
+            final int oldLength = 0 != (flags & UNIFORM_OLD) ? 1 : length;
+            final int newLength = 0 != (flags & UNIFORM_NEW) ? 1 : length;
+
+            final int start = newTiles ? offset + oldLength : offset;
+            if (0 != (flags & (newTiles ? UNIFORM_NEW : UNIFORM_OLD))) {
+                if (0 > runX || layer.getWidth() < runX + length || 0 > runY || layer.getHeight() <= runY) {
+                    throw new ArrayIndexOutOfBoundsException("Attempt to write tiles when coordinates are out of bounds " +
+                                                             "(x: " + runX + ", y: " + runY + ", length: " + length + ')');
+                }
+                layer.fillRow(runX, runY, length, data[start] & 0xFF);
+            }
+            else {
+                for (int j = 0; j < length; ++j) {
+                    layer.setTile(runX + j, runY, data[start + j] & 0xFF);
+                }
+            }
+
+            offset += oldLength + newLength;
+        }
+    }
+
+    /**
+     * Returns the number of tiles changed by this delta
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    /**
+     * Returns the x coordinate of the leftmost tile changed by this delta, or 0 if it is empty
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y coordinate of the topmost tile changed by this delta, or 0 if it is empty
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the width of the smallest rectangle holding every tile changed by this delta
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the smallest rectangle holding every tile changed by this delta
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns roughly how many bytes of memory this delta takes up
+     */
+    public long getByteSize() {
+        return OVERHEAD + ((long)runs.length * Integer.BYTES) + data.length;
+    }
+
+    /**
+     * Writes this delta to {@code out} such that {@link #read(DataInput)} can read it back
+     */
+    public void write(final DataOutput out) throws IOException {
+        NullArgumentException.Companion.requireNonNull(out, "write", "out");
+
+        out.writeInt(size);
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(width);
+        out.writeInt(height);
+
+        out.writeInt(runs.length);
+        for (final int run : runs) {
+            out.writeInt(run);
+        }
+
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Reads a delta written by {@link #write(DataOutput)} from {@code in}
+     *
+     * @throws IOException if {@code in} could not be read from or does not hold a delta
+     */
+    public static TileDelta read(final DataInput in) throws IOException {
+        NullArgumentException.Companion.requireNonNull(in, "read", "in");
+
+        final int size = in.readInt();
+        final int x = in.readInt();
+        final int y = in.readInt();
+        final int width = in.readInt();
+        final int height = in.readInt();
+
+        final int numRuns = in.readInt();
+        if (0 > numRuns || 0 != (numRuns & 1)) {
+            throw new IOException("Attempt to read TileDelta with invalid run count (numRuns: " + numRuns + ')');
+        }
+        final int[] runs = new int[numRuns];
+        for (int i = 0; i < runs.length; ++i) {
+            runs[i] = in.readInt();
+        }
+
+        final int dataLength = in.readInt();
+        if (0 > dataLength) {
+            throw new IOException("Attempt to read TileDelta with negative data length (dataLength: " + dataLength + ')');
+        }
+        final byte[] data = new byte[dataLength];
+        in.readFully(data);
+
+        return new TileDelta(runs, data, size, x, y, width, height);
+    }
+
+    /**
+     * Collects the changes made by an edit one tile or one span of tiles at a time. A tile may be
+     * added more than once - only its value before the first change and after the last change are
+     * kept, and it is left out entirely if those are the same.
+     */
+    public static final class Builder {
+        /*
+         * (y << 48) | (x << 32) | index, where index is into cellOld and cellNew, with the sign
+         * bit flipped so that sorting them sorts by row, then column, then order of addition
+         */
+        private long[] cells = new long[16];
+        private byte[] cellOld = new byte[16];
+        private byte[] cellNew = new byte[16];
+        private int numCells;
+
+        //x | (y << 16), length, old | (new << 8)
+        private int[] spans = new int[3 * 4];
+        private int numSpans;
+
+        /**
+         * Records that the tile at ({@code x}, {@code y}) changed from {@code oldTile} to {@code newTile}
+         */
+        public Builder add(final int x, final int y, final int oldTile, final int newTile) {
+            checkArgs(x, y, 1, oldTile, newTile);
+            if (oldTile == newTile) {
+                return this;
+            }
+
+            if (cells.length == numCells) {
+                final int newLength = cells.length * 2;
+                cells = Arrays.copyOf(cells, newLength);
+                cellOld = Arrays.copyOf(cellOld, newLength);
+                cellNew = Arrays.copyOf(cellNew, newLength);
+            }
+
+            cells[numCells] = (((long)y << 48) | ((long)x << 32) | numCells) ^ Long.MIN_VALUE;
+            cellOld[numCells] = (byte)oldTile;
+            cellNew[numCells] = (byte)newTile;
+            ++numCells;
+            return this;
+        }
+
+        /**
+         * Records that the {@code length} tiles from ({@code x}, {@code y}) rightwards all changed
+         * from {@code oldTile} to {@code newTile}. Unlike tiles passed to {@link #add(int, int, int, int)},
+         * the tiles of a span must not have been added to this builder before, either alone or in
+         * another span.
+         */
+        public Builder addSpan(final int x, final int y, final int length, final int oldTile, final int newTile) {
+            checkArgs(x, y, length, oldTile, newTile);
+            if (0 == length || oldTile == newTile) {
+                return this;
+            }
+
+            if (spans.length == numSpans * 3) {
+                spans = Arrays.copyOf(spans, spans.length * 2);
+            }
+
+            spans[numSpans * 3] = x | (y << 16);
+            spans[(numSpans * 3) + 1] = length;
+            spans[(numSpans * 3) + 2] = oldTile | (newTile << 8);
+            ++numSpans;
+            return this;
+        }
+
+        private static void checkArgs(final int x, final int y, final int length, final int oldTile, final int newTile) {
+            //layers are at most 65,535 tiles across, so their coordinates (and runs) fit in 16 bits
+            if (0 > x || 0 > y || 0 > length || 0xFFFF <= x + length - 1 || 0xFFFF <= y) {
+                throw new IllegalArgumentException("Attempt to add tiles to TileDelta with coordinates outside range 0 - 65,534 " +
+                                                   "(x: " + x + ", y: " + y + ", length: " + length + ')');
+            }
+            if (0 > oldTile || 0xFF < oldTile || 0 > newTile || 0xFF < newTile) {
+                throw new IllegalArgumentException("Attempt to add tiles to TileDelta with values outside range 0 - 255 " +
+                                                   "(oldTile: " + oldTile + ", newTile: " + newTile + ')');
+            }
+        }
+
+        /**
+         * Returns true if nothing that would change a tile has been added to this builder. A builder
+         * that is not empty may still build an empty delta if every tile added was changed back.
+         */
+        public boolean isEmpty() {
+            return 0 == numCells && 0 == numSpans;
+        }
+
+        public TileDelta build() {
+            final Encoder encoder = new Encoder();
+
+            for (int i = 0; i < numSpans; ++i) {
+                final int pos = spans[i * 3];
+                final int tiles = spans[(i * 3) + 2];
+                encoder.appendSpan(pos & 0xFFFF, pos >>> 16, spans[(i * 3) + 1], tiles & 0xFF, tiles >>> 8);
+            }
+
+            final long[] sorted = Arrays.copyOf(cells, numCells);
+            Arrays.sort(sorted);
+
+            int i = 0;
+            while (i < sorted.length) {
+                final long pos = (sorted[i] ^ Long.MIN_VALUE) >>> 32;
+                final byte oldTile = cellOld[(int)sorted[i]];
+
+                //the cell's last entry has its final value
+                while (i + 1 < sorted.length && pos == (sorted[i + 1] ^ Long.MIN_VALUE) >>> 32) {
+                    ++i;
+                }
+                final byte newTile = cellNew[(int)sorted[i]];
+                ++i;
+
+                if (oldTile != newTile) {
+                    encoder.appendCell((int)(pos & 0xFFFF), (int)(pos >>> 16), oldTile, newTile);
+                }
+            }
+
+            return encoder.finish();
+        }
+    }
+
+    /**
+     * Packs runs of tiles into the arrays of a {@code TileDelta}. Cells must be appended
+     * in order of row and then column; a cell right after the last one in the same row
+     * extends the current run rather than starting a new one.
+     */
+    private static final class Encoder {
+        private int[] runs = new int[16];
+        private int numRuns;
+
+        private byte[] data = new byte[64];
+        private int dataLength;
+
+        private int size;
+
+        private int left = Integer.MAX_VALUE;
+        private int top = Integer.MAX_VALUE;
+        private int right = Integer.MIN_VALUE;
+        private int bottom = Integer.MIN_VALUE;
+
+        //the run that cells are being appended to, -1 if there isn't one
+        private int runX;
+        private int runY = -1;
+        private int runLength;
+        private byte[] runOld = new byte[16];
+        private byte[] runNew = new byte[16];
+
+        void appendSpan(final int x, final int y, final int length, final int oldTile, final int newTile) {
+            ensureRuns();
+            runs[numRuns * 2] = x | (y << 16);
+            runs[(numRuns * 2) + 1] = length | ((UNIFORM_OLD | UNIFORM_NEW) << 16);
+            ++numRuns;
+
+            ensureData(2);
+            data[dataLength++] = (byte)oldTile;
+            data[dataLength++] = (byte)newTile;
+
+            include(x, y, length);
+        }
+
+        void appendCell(final int x, final int y, final byte oldTile, final byte newTile) {
+            if (y != runY || x != runX + runLength) {
+                flushRun();
+                runX = x;
+                runY = y;
+            }
+
+            if (runOld.length == runLength) {
+                runOld = Arrays.copyOf(runOld, runLength * 2);
+                runNew = Arrays.copyOf(runNew, runLength * 2);
+            }
+            runOld[runLength] = oldTile;
+            runNew[runLength] = newTile;
+            ++runLength;
+        }
+
+        private void flushRun() {
+            if (0 == runLength) {
+                return;
+            }
+
+            final boolean uniformOld = isUniform(runOld, runLength);
+            final boolean uniformNew = isUniform(runNew, runLength);
+
+            ensureRuns();
+            runs[numRuns * 2] = runX | (runY << 16);
+            runs[(numRuns * 2) + 1] = runLength | (((uniformOld ? UNIFORM_OLD : 0) | (uniformNew ? UNIFORM_NEW : 0)) << 16);
+            ++numRuns;
+
+            ensureData((uniformOld ? 1 : runLength) + (uniformNew ? 1 : runLength));
+            System.arraycopy(runOld, 0, data, dataLength, uniformOld ? 1 : runLength);
+            dataLength += uniformOld ? 1 : runLength;
+            System.arraycopy(runNew, 0, data, dataLength, uniformNew ? 1 : runLength);
+            dataLength += uniformNew ? 1 : runLength;
+
+            include(runX, runY, runLength);
+            runLength = 0;
+            runY = -1;
+        }
+
+        TileDelta finish() {
+            flushRun();
+            if (0 == size) {
+                return new TileDelta(new int[0], new byte[0], 0, 0, 0, 0, 0);
+            }
+            return new TileDelta(Arrays.copyOf(runs, numRuns * 2), Arrays.copyOf(data, dataLength), size,
+                                 left, top, right - left + 1, bottom - top + 1);
+        }
+
+        private void include(final int x, final int y, final int length) {
+            size += length;
+            left = Math.min(left, x);
+            top = Math.min(top, y);
+            right = Math.max(right, x + length - 1);
+            bottom = Math.max(bottom, y);
+        }
+
+        private void ensureRuns() {
+            if (runs.length == numRuns * 2) {
+                runs = Arrays.copyOf(runs, runs.length * 2);
+            }
+        }
+
+        private void ensureData(final int extra) {
+            if (data.length < dataLength + extra) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + extra));
+            }
+        }
+
+        private static boolean isUniform(final byte[] tiles, final int length) {
+            for (int i = 1; i < length; ++i) {
+                if (tiles[0] != tiles[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
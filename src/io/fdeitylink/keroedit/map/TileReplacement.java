@@ -0,0 +1,397 @@
+package io.fdeitylink.keroedit.map;
+
+import java.util.ArrayList;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import java.io.IOException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+import io.fdeitylink.util.NullArgumentException;
+
+/**
+ * The tiles of a {@link PxPack.TileLayer} that had every occurrence of one tile replaced with another,
+ * kept for undoing the replacement. As every replaced tile had the same old and new value, all that
+ * needs to be stored is which tiles were replaced, as a bitmap with a bit per tile. The bitmap is
+ * compressed in two levels: bands of {@code CHUNK_SIZE} rows with nothing replaced are left out, and
+ * within each band, only the 64-bit words of the bitmap with a bit set are kept, along with a bit per
+ * word saying which ones those are.
+ *
+ * Instances are made by {@link PxPack.TileLayer#replaceAll(int, int)}.
+ */
+public final class TileReplacement {
+    //object header, array headers, and fields, roughly
+    private static final int OVERHEAD = 64;
+
+    //the dimensions of the layer when its tiles were replaced
+    private final int layerWidth;
+    private final int layerHeight;
+
+    private final int from;
+    private final int to;
+
+    private final long size;
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    /*
+     * For each band with replaced tiles: its chunk row, a bit for each word of the band's
+     * bitmap saying whether it has any bits set, and the words that do, in order. The words
+     * of a band go row by row and chunk by chunk, as per ChunkedTileStore.replaceInChunkRow.
+     */
+    private final int[] bandRows;
+    private final long[][] bandPresence;
+    private final long[][] bandWords;
+
+    private TileReplacement(final int layerWidth, final int layerHeight, final int from, final int to,
+                            final long size, final int x, final int y, final int width, final int height,
+                            final int[] bandRows, final long[][] bandPresence, final long[][] bandWords) {
+        this.layerWidth = layerWidth;
+        this.layerHeight = layerHeight;
+        this.from = from;
+        this.to = to;
+        this.size = size;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.bandRows = bandRows;
+        this.bandPresence = bandPresence;
+        this.bandWords = bandWords;
+    }
+
+    /**
+     * Replaces every {@code from} tile in {@code tiles} with {@code to}, each band on the common {@code ForkJoinPool}
+     */
+    static TileReplacement replace(final ChunkedTileStore tiles, final int from, final int to) {
+        final Band[] bands = new Band[tiles.getChunksPerColumn()];
+        if (from != to && 0 != bands.length) {
+            ForkJoinPool.commonPool().invoke(new Replace(tiles, from, to, bands, 0, bands.length));
+        }
+
+        //a layer can have more tiles than fit in an int
+        long size = 0;
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+
+        final ArrayList<Band> replaced = new ArrayList<>();
+        for (final Band band : bands) {
+            if (null == band) {
+                continue;
+            }
+            replaced.add(band);
+
+            size += band.size;
+            left = Math.min(left, band.left);
+            top = Math.min(top, band.top);
+            right = Math.max(right, band.right);
+            bottom = Math.max(bottom, band.bottom);
+        }
+
+        final int[] bandRows = new int[replaced.size()];
+        final long[][] bandPresence = new long[replaced.size()][];
+        final long[][] bandWords = new long[replaced.size()][];
+        for (int i = 0; i < bandRows.length; ++i) {
+            bandRows[i] = replaced.get(i).cy;
+            bandPresence[i] = replaced.get(i).presence;
+            bandWords[i] = replaced.get(i).words;
+        }
+
+        if (0 == size) {
+            return new TileReplacement(tiles.getWidth(), tiles.getHeight(), from, to, 0, 0, 0, 0, 0,
+                                       bandRows, bandPresence, bandWords);
+        }
+        return new TileReplacement(tiles.getWidth(), tiles.getHeight(), from, to, size,
+                                   left, top, right - left + 1, bottom - top + 1, bandRows, bandPresence, bandWords);
+    }
+
+    /**
+     * Sets every replaced tile to the new tile in {@code layer}
+     *
+     * @throws IllegalArgumentException if {@code layer} is not the same size as the layer the tiles were replaced in
+     */
+    public void apply(final PxPack.TileLayer layer) {
+        NullArgumentException.Companion.requireNonNull(layer, "apply", "layer");
+        write(layer, to);
+    }
+
+    /**
+     * Sets every replaced tile back to the old tile in {@code layer}
+     *
+     * @throws IllegalArgumentException if {@code layer} is not the same size as the layer the tiles were replaced in
+     */
+    public void revert(final PxPack.TileLayer layer) {
+        NullArgumentException.Companion.requireNonNull(layer, "revert", "layer");
+        write(layer, from);
+    }
+
+    private void write(final PxPack.TileLayer layer, final int tile) {
+        if (layerWidth != layer.getWidth() || layerHeight != layer.getHeight()) {
+            throw new IllegalArgumentException("Attempt to write replaced tiles to layer of different size " +
+                                               "(layer width: " + layer.getWidth() + ", layer height: " + layer.getHeight() +
+                                               ", expected width: " + layerWidth + ", expected height: " + layerHeight + ')');
+        }
+
+        final int chunksPerRow = (layerWidth + ChunkedTileStore.CHUNK_SIZE - 1) >> ChunkedTileStore.CHUNK_SHIFT;
+        for (int b = 0; b < bandRows.length; ++b) {
+            final int bandY = bandRows[b] << ChunkedTileStore.CHUNK_SHIFT;
+            final long[] presence = bandPresence[b];
+            final long[] words = bandWords[b];
+
+            int w = 0;
+            for (int p = 0; p < presence.length; ++p) {
+                for (long bits = presence[p]; 0 != bits; bits &= bits - 1) {
+                    final int word = (p << 6) + Long.numberOfTrailingZeros(bits);
+                    layer.setMasked(word % chunksPerRow, bandY + (word / chunksPerRow), words[w++], tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tiles that were replaced
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    /**
+     * Returns the x coordinate of the leftmost replaced tile, or 0 if none were replaced
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y coordinate of the topmost replaced tile, or 0 if none were replaced
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the width of the smallest rectangle holding every replaced tile
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the smallest rectangle holding every replaced tile
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns roughly how many bytes of memory this replacement takes up
+     */
+    public long getByteSize() {
+        long bytes = OVERHEAD + ((long)bandRows.length * Integer.BYTES);
+        for (int b = 0; b < bandRows.length; ++b) {
+            bytes += (long)(bandPresence[b].length + bandWords[b].length) * Long.BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes this replacement to {@code out} such that {@link #read(DataInput)} can read it back
+     */
+    public void write(final DataOutput out) throws IOException {
+        NullArgumentException.Companion.requireNonNull(out, "write", "out");
+
+        out.writeInt(layerWidth);
+        out.writeInt(layerHeight);
+        out.writeByte(from);
+        out.writeByte(to);
+        out.writeLong(size);
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(width);
+        out.writeInt(height);
+
+        out.writeInt(bandRows.length);
+        for (int b = 0; b < bandRows.length; ++b) {
+            out.writeInt(bandRows[b]);
+            writeLongs(out, bandPresence[b]);
+            writeLongs(out, bandWords[b]);
+        }
+    }
+
+    /**
+     * Reads a replacement written by {@link #write(DataOutput)} from {@code in}
+     *
+     * @throws IOException if {@code in} could not be read from or does not hold a replacement
+     */
+    public static TileReplacement read(final DataInput in) throws IOException {
+        NullArgumentException.Companion.requireNonNull(in, "read", "in");
+
+        final int layerWidth = in.readInt();
+        final int layerHeight = in.readInt();
+        final int from = in.readUnsignedByte();
+        final int to = in.readUnsignedByte();
+        final long size = in.readLong();
+        final int x = in.readInt();
+        final int y = in.readInt();
+        final int width = in.readInt();
+        final int height = in.readInt();
+
+        final int numBands = in.readInt();
+        if (0 > numBands) {
+            throw new IOException("Attempt to read TileReplacement with negative band count (numBands: " + numBands + ')');
+        }
+
+        final int[] bandRows = new int[numBands];
+        final long[][] bandPresence = new long[numBands][];
+        final long[][] bandWords = new long[numBands][];
+        for (int b = 0; b < numBands; ++b) {
+            bandRows[b] = in.readInt();
+            bandPresence[b] = readLongs(in);
+            bandWords[b] = readLongs(in);
+        }
+
+        return new TileReplacement(layerWidth, layerHeight, from, to, size, x, y, width, height,
+                                   bandRows, bandPresence, bandWords);
+    }
+
+    private static void writeLongs(final DataOutput out, final long[] longs) throws IOException {
+        out.writeInt(longs.length);
+        for (final long l : longs) {
+            out.writeLong(l);
+        }
+    }
+
+    private static long[] readLongs(final DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (0 > length) {
+            throw new IOException("Attempt to read TileReplacement with negative array length (length: " + length + ')');
+        }
+
+        final long[] longs = new long[length];
+        for (int i = 0; i < longs.length; ++i) {
+            longs[i] = in.readLong();
+        }
+        return longs;
+    }
+
+    /**
+     * The compressed bitmap of one band with replaced tiles
+     */
+    private static final class Band {
+        final int cy;
+        final long[] presence;
+        final long[] words;
+
+        final long size;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+
+        Band(final int cy, final long[] presence, final long[] words,
+             final long size, final int left, final int top, final int right, final int bottom) {
+            this.cy = cy;
+            this.presence = presence;
+            this.words = words;
+            this.size = size;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+    }
+
+    private static final class Replace extends RecursiveAction {
+        private final ChunkedTileStore tiles;
+        private final int from;
+        private final int to;
+
+        private final Band[] bands;
+        private final int fromBand;
+        private final int toBand;
+
+        Replace(final ChunkedTileStore tiles, final int from, final int to,
+                final Band[] bands, final int fromBand, final int toBand) {
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+            this.bands = bands;
+            this.fromBand = fromBand;
+            this.toBand = toBand;
+        }
+
+        @Override
+        protected void compute() {
+            //each band is CHUNK_SIZE full rows, which is plenty of work for one task
+            if (toBand - fromBand > 1) {
+                final int middle = (fromBand + toBand) >>> 1;
+                invokeAll(new Replace(tiles, from, to, bands, fromBand, middle),
+                          new Replace(tiles, from, to, bands, middle, toBand));
+                return;
+            }
+
+            final int chunksPerRow = tiles.getChunksPerRow();
+            final long[] replaced = new long[ChunkedTileStore.CHUNK_SIZE * chunksPerRow];
+            tiles.replaceInChunkRow(fromBand, from, to, replaced);
+
+            int numWords = 0;
+            final long[] presence = new long[(replaced.length + 63) >> 6];
+            for (int i = 0; i < replaced.length; ++i) {
+                if (0 != replaced[i]) {
+                    presence[i >> 6] |= 1L << i;
+                    ++numWords;
+                }
+            }
+            if (0 == numWords) {
+                return;
+            }
+
+            final long[] words = new long[numWords];
+            long size = 0;
+            int left = Integer.MAX_VALUE;
+            int top = Integer.MAX_VALUE;
+            int right = Integer.MIN_VALUE;
+            int bottom = Integer.MIN_VALUE;
+
+            int w = 0;
+            for (int i = 0; i < replaced.length; ++i) {
+                final long word = replaced[i];
+                if (0 == word) {
+                    continue;
+                }
+                words[w++] = word;
+
+                final int wordX = (i % chunksPerRow) << ChunkedTileStore.CHUNK_SHIFT;
+                final int wordY = (fromBand << ChunkedTileStore.CHUNK_SHIFT) + (i / chunksPerRow);
+
+                size += Long.bitCount(word);
+                left = Math.min(left, wordX + Long.numberOfTrailingZeros(word));
+                right = Math.max(right, wordX + 63 - Long.numberOfLeadingZeros(word));
+                top = Math.min(top, wordY);
+                bottom = Math.max(bottom, wordY);
+            }
+
+            bands[fromBand] = new Band(fromBand, presence, words, size, left, top, right, bottom);
+        }
+    }
+}
@@ -3,10 +3,7 @@
  * Try using resize() instead of setWidth() and setHeight()
  * Resizing map & tileset is slightly slow
  * For map - draw tile types on separate layer just like with the tileset pane
- * Find workaround for NPE with large Canvas (19tunnel maps in KB); current workaround is minimal map zoom
- * - https://bugs.openjdk.java.net/browse/JDK-8089835
  * Show error on tileset load for 0 dimension? (only if first tileset?)
- * Make method for redrawing subset/region of map
  * Put map loading into Task or Service
  * Make initResources() a Service?
  * Use image.getWidth()/Height() instead of TILESET_WIDTH/HEIGHT constants?
@@ -17,11 +14,8 @@
  * Show error if tileset file doesn't exist? (do this in PxPack?)
  * Error check layer, coordinate arguments for UndoableEdit and PxAttrPopup constructors
  * Why doesn't selected rect draw on tileset until after user makes first click or changes layer?
- * Glob draw edits together based on single mouse drag/click
- * Make redrawing entities a Service
- * Method for redrawing a single entity?
  * Pixel renders the game at 2x (so 200% zoom looks like it would in the game assuming the scale there is set to 1x)
- * Have redrawTile() and redrawTileLayer() take a Layer enum object rather than an int layer
+ * Have redrawRegion() and redrawTileLayer() take a Layer enum object rather than an int layer
  * Break this up into multiple files once this is reimplemented in Kotlin (i.e. make it less of a mess)
  */
 
@@ -38,6 +32,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import java.io.IOException;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.text.ParseException;
 
 import java.text.MessageFormat;
@@ -92,6 +88,8 @@ import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.ReadOnlyObjectProperty;
 
+import javafx.beans.InvalidationListener;
+
 import javafx.scene.input.MouseButton;
 
 import javafx.scene.image.Image;
@@ -109,17 +107,33 @@ import javafx.scene.image.WritablePixelFormat;
 import javafx.scene.image.PixelFormat;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javafx.application.Platform;
+import javafx.animation.AnimationTimer;
 import javafx.concurrent.Service;
 
 import javafx.geometry.Rectangle2D;
 import javafx.geometry.Point2D;
+import javafx.geometry.Bounds;
+
+import javafx.scene.Node;
 
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonArray;
 
+import io.fdeitylink.util.AtomicFileBatch;
 import io.fdeitylink.util.NullArgumentException;
 
 import io.fdeitylink.util.Array2D;
@@ -136,6 +150,7 @@ import io.fdeitylink.util.fx.FXUtil;
 import io.fdeitylink.util.fx.FileEditTab;
 
 import io.fdeitylink.util.fx.UndoableEdit;
+import io.fdeitylink.util.fx.SpillableEdit;
 
 import io.fdeitylink.keroedit.KeroEdit;
 
@@ -148,11 +163,14 @@ import io.fdeitylink.keroedit.Config;
 import io.fdeitylink.keroedit.gamedata.GameData;
 
 import io.fdeitylink.keroedit.map.PxPack;
+import io.fdeitylink.keroedit.map.TileDelta;
+import io.fdeitylink.keroedit.map.TileReplacement;
 import io.fdeitylink.keroedit.map.Layer;
 
 import io.fdeitylink.keroedit.image.PxAttrManager;
 import io.fdeitylink.keroedit.image.PxAttr;
 import io.fdeitylink.keroedit.image.ImageManager;
+import io.fdeitylink.keroedit.image.TileTable;
 
 import io.fdeitylink.keroedit.script.ScriptEditTab;
 
@@ -160,6 +178,7 @@ import static io.fdeitylink.keroedit.image.ImageDimensionsKt.TILE_WIDTH;
 import static io.fdeitylink.keroedit.image.ImageDimensionsKt.TILE_HEIGHT;
 
 import static io.fdeitylink.keroedit.image.ImageDimensionsKt.TILES_PER_ROW;
+import static io.fdeitylink.keroedit.image.ImageDimensionsKt.TILES_PER_COLUMN;
 
 import static io.fdeitylink.keroedit.image.ImageDimensionsKt.TILESET_WIDTH;
 import static io.fdeitylink.keroedit.image.ImageDimensionsKt.TILESET_HEIGHT;
@@ -195,7 +214,15 @@ public final class MapEditTab extends FileEditTab {
 
     private static final SimpleObjectProperty<EditMode> editMode;
 
+    /*
+     * Builds the images of map layers and entities for every MapEditTab, leaving a processor
+     * free for the JavaFX thread. Superseded jobs are cancelled, so the queue stays short.
+     */
+    private static final ExecutorService renderExecutor;
+
     private static Image pxAttrImage;
+    //pxAttrImage decoded into its tiles, decoded when first needed
+    private static TileTable pxAttrTileTable;
     private static Image entityImage;
     private static String[] entityNames;
 
@@ -218,6 +245,12 @@ public final class MapEditTab extends FileEditTab {
 
         editMode = new SimpleObjectProperty<>(Config.editMode);
 
+        renderExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), r -> {
+            final Thread thread = new Thread(r, "MapEditTab render");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         /* ********************************************** Tileset Stage ********************************************* */
         EMPTY_PANE = new Pane(); //null not accepted as scene root, so this is used when tileset stage is not shown
 
@@ -358,6 +391,12 @@ public final class MapEditTab extends FileEditTab {
         return scriptEditTab.getPath();
     }
 
+    @Override
+    protected List<FileEditTab> getChildTabs() {
+        //these never leave tabPane, so they would otherwise keep their histories (and this tab) registered
+        return Arrays.asList(tileEditTab, scriptEditTab, propertyEditTab);
+    }
+
     @Override
     public void undo() {
         final Tab selectedTab = tabPane.getSelectionModel().getSelectedItem();
@@ -400,6 +439,18 @@ public final class MapEditTab extends FileEditTab {
         }
     }
 
+    @Override
+    public void save(final AtomicFileBatch batch) throws IOException {
+        map.save(batch);
+        scriptEditTab.save(batch);
+
+        batch.onCommit(() -> {
+            tileEditTab.markUnchanged();
+            propertyEditTab.markUnchanged();
+            markUnchanged();
+        });
+    }
+
     //Made public so the child ScriptEditTab can call it
     @Override
     public void markChanged() {
@@ -419,6 +470,7 @@ public final class MapEditTab extends FileEditTab {
      */
     public static void wipeResources() {
         pxAttrImage = null;
+        pxAttrTileTable = null;
         entityImage = null;
         entityNames = null;
     }
@@ -565,6 +617,19 @@ public final class MapEditTab extends FileEditTab {
             //does nothing
         }
 
+        //a stroke still in progress becomes an edit first, so that it is what gets undone
+        @Override
+        public void undo() {
+            mapPane.endStroke();
+            super.undo();
+        }
+
+        @Override
+        public void redo() {
+            mapPane.endStroke();
+            super.redo();
+        }
+
         @Override
         protected void markChanged() {
             super.markChanged();
@@ -686,6 +751,7 @@ public final class MapEditTab extends FileEditTab {
             private final Rectangle2D[] selectedRects;
 
             private Image[] tilesets;
+            private String[] tilesetNames;
 
             //TODO: List of fixed size
             //private final ArrayList <ReadOnlyObjectProperty <PxAttr>> pxAttrs; //generic arrays not allowed
@@ -826,7 +892,7 @@ public final class MapEditTab extends FileEditTab {
                 loadTilesets = FXUtil.INSTANCE.service(() -> {
                     tilesets = new Image[PxPack.NUM_LAYERS];
 
-                    final String[] tilesetNames = head.getTilesetNames();
+                    tilesetNames = head.getTilesetNames();
                     for (int i = 0; i < tilesets.length; ++i) {
                         tilesets[i] = ImageManager.INSTANCE.getImage(tilesetNames[i], true);
                     }
@@ -855,7 +921,12 @@ public final class MapEditTab extends FileEditTab {
                     for (int i = 0; i < tilesetNames.length; ++i) {
                         try {
                             final ReadOnlyObjectProperty<PxAttr> pxAttrProp = PxAttrManager.INSTANCE.getPxAttr(tilesetNames[i]);
+                            final int layer = i;
                             pxAttrProp.addListener(observable -> {
+                                //the property is also invalidated when it is given a new PxAttr in place of mpt00
+                                pxAttrs[layer] = pxAttrProp.get();
+                                mapPane.invalidateTileTypeAtlas(layer);
+
                                 redrawTileTypes.restart();
                                 mapPane.redrawTileLayer(selectedLayer.get().ordinal());
                             });
@@ -1188,8 +1259,8 @@ public final class MapEditTab extends FileEditTab {
                 });
                 entityList.setOnMouseClicked(event -> {
                     if (MouseButton.PRIMARY == event.getButton() && 2 == event.getClickCount()) {
-                        //TODO: Redraw entity
                         editorPane.getEntity().setType(entityList.getSelectionModel().getSelectedItem());
+                        mapPane.redrawEntity(editorPane.getEntity());
                         markChanged();
                     }
                 });
@@ -1282,6 +1353,57 @@ public final class MapEditTab extends FileEditTab {
 
             private final StackPane stackPane;
 
+            /*
+             * The canvases are only as big as the viewport and are moved along with it as the
+             * map is scrolled, so their size doesn't depend on the size of the map or mapZoom
+             * (https://bugs.openjdk.java.net/browse/JDK-8089835). Their GraphicsContexts are
+             * translated so that everything is drawn in the coordinates of the whole map.
+             */
+            private double viewX, viewY;
+            private double viewWidth, viewHeight;
+
+            //the size of the whole map in pixels, as per mapZoom
+            private double contentWidth, contentHeight;
+
+            private final RenderScheduler renderScheduler = new RenderScheduler();
+
+            /*
+             * The job on renderExecutor painting each layer and the entities, or null if none is running.
+             * The generations are incremented by every paint, so that a job that was replaced but still
+             * finished can tell that it shouldn't draw anything. Only touched on the JavaFX thread.
+             */
+            private final Future<?>[] layerJobs = new Future<?>[PxPack.NUM_LAYERS];
+            private final int[] layerGenerations = new int[PxPack.NUM_LAYERS];
+            private Future<?> entityJob;
+            private int entityGeneration;
+
+            //{left, top, right, bottom} of the tiles painted in each layer while its job was running, or null
+            private final int[][] regionsDuringJobs = new int[PxPack.NUM_LAYERS][];
+
+            /*
+             * Each layer's tileset, scaled to mapZoom, with the tile type of each tile drawn over it, or null
+             * if it hasn't been built since it was last invalidated. Also kept are what each one was built from,
+             * so that one built from a tileset or PxAttr that has since been replaced isn't used.
+             */
+            private final TileTable[] tileTypeAtlases = new TileTable[PxPack.NUM_LAYERS];
+            private final double[] tileTypeAtlasZooms = new double[PxPack.NUM_LAYERS];
+            private final TileTable[] tileTypeAtlasTilesets = new TileTable[PxPack.NUM_LAYERS];
+            private final PxAttr[] tileTypeAtlasPxAttrs = new PxAttr[PxPack.NUM_LAYERS];
+
+            //entityImage scaled so that each of its tiles is the size of a tile at mapZoom
+            private final ScaledImageCache scaledEntityImages = new ScaledImageCache();
+
+            //{x, y, type} of each entity as it was last drawn, for those that were within the viewport
+            private final IdentityHashMap<PxPack.Entity, int[]> drawnEntities = new IdentityHashMap<>();
+
+            /*
+             * The tiles changed by the stroke in progress, or null if there isn't one. strokeX and strokeY
+             * are where it last stamped, so that dragging within a tile doesn't stamp it over and over.
+             */
+            private TileDelta.Builder stroke;
+            private int strokeLayer;
+            private int strokeX, strokeY;
+
             MapPane() {
                 tileLayers = map.getTileLayers();
 
@@ -1315,10 +1437,6 @@ public final class MapEditTab extends FileEditTab {
                 context.setStroke(Color.WHITE);
                 context.setLineWidth(2);
 
-                fixCanvasSizes();
-                redrawGridLayer();
-                redrawEntityLayer();
-
                 /* ******************************************** StackPane ******************************************* */
                 stackPane = new StackPane();
                 stackPane.setAlignment(Pos.TOP_LEFT);
@@ -1327,6 +1445,22 @@ public final class MapEditTab extends FileEditTab {
                 }
                 stackPane.getChildren().addAll(entityCanvas, gridCanvas, cursorCanvas);
 
+                fixCanvasSizes();
+                redrawGridLayer();
+                redrawEntityLayer();
+
+                final InvalidationListener viewportListener = observable -> {
+                    if (updateViewport()) {
+                        redrawAllTileLayers();
+                        redrawEntityLayer();
+                        redrawGridLayer();
+                        clearCanvas(cursorCanvas);
+                    }
+                };
+                viewportBoundsProperty().addListener(viewportListener);
+                hvalueProperty().addListener(viewportListener);
+                vvalueProperty().addListener(viewportListener);
+
                 bgColor = new SimpleObjectProperty<>(head.getBgColor());
                 bgColor.addListener((observable, oldValue, newValue) -> FXUtil.INSTANCE.setBackgroundColor(stackPane, newValue));
                 FXUtil.INSTANCE.setBackgroundColor(stackPane, bgColor.get());
@@ -1406,8 +1540,8 @@ public final class MapEditTab extends FileEditTab {
 
                     @Override
                     public void handle(final MouseEvent event) {
-                        final int x = (int)(event.getX() / mapZoom.get() / TILE_WIDTH);
-                        final int y = (int)(event.getY() / mapZoom.get() / TILE_HEIGHT);
+                        final int x = (int)((event.getX() + viewX) / mapZoom.get() / TILE_WIDTH);
+                        final int y = (int)((event.getY() + viewY) / mapZoom.get() / TILE_HEIGHT);
 
                         if (x != prevX || y != prevY) {
                             prevX = x;
@@ -1424,7 +1558,7 @@ public final class MapEditTab extends FileEditTab {
                             }
 
                             final GraphicsContext cursorGContext = cursorCanvas.getGraphicsContext2D();
-                            cursorGContext.clearRect(0, 0, cursorCanvas.getWidth(), cursorCanvas.getHeight());
+                            clearCanvas(cursorCanvas);
 
                             switch (drawMode.get()) {
                                 case DRAW:
@@ -1435,6 +1569,15 @@ public final class MapEditTab extends FileEditTab {
                                                                    TILE_HEIGHT * tilesRect.length * mapZoom.get(),
                                                                    10, 10);
                                     break;
+                                case FILL:
+                                case REPLACE:
+                                    //only the top-left selected tile is used
+                                    cursorGContext.strokeRoundRect(x * TILE_WIDTH * mapZoom.get(),
+                                                                   y * TILE_HEIGHT * mapZoom.get(),
+                                                                   TILE_WIDTH * mapZoom.get(),
+                                                                   TILE_HEIGHT * mapZoom.get(),
+                                                                   10, 10);
+                                    break;
                             }
                         }
                     }
@@ -1442,88 +1585,56 @@ public final class MapEditTab extends FileEditTab {
                 //Note to self - don't use cursorCanvas::fireEvent - causes StackOverflowException (infinite recursion I think)
                 cursorCanvas.setOnMouseDragged(cursorCanvas.getOnMouseMoved());
 
-                stackPane.setOnMouseClicked(event -> {
-                    if (EditMode.TILE == editMode.get()) {
+                /*
+                 * Everything stamped from the mouse being pressed to it being released is one stroke, undone as
+                 * a single edit. Tiles are only marked for redrawing here, so a fast drag is painted once per pulse.
+                 */
+                stackPane.setOnMousePressed(event -> {
+                    if (EditMode.TILE == editMode.get() && MouseButton.PRIMARY == event.getButton()) {
                         try {
-                            FXUtil.INSTANCE.task(() -> {
-                                final int layer = selectedLayer.get().ordinal();
-
-                                if (mapCanvases[layer].isVisible() && MouseButton.PRIMARY == event.getButton()) {
-                                    final int[][] tiles = tileLayers[layer].getTiles();
-
-                                    if (null != tiles) {
-                                        //grabs x & y and bounds them to be within map
-                                        final int x = (int)(MathUtilsKt.bound((int)event.getX(), 0,
-                                                                              (int)(mapCanvases[layer].getWidth() - 1)) /
-                                                            mapZoom.get() / TILE_WIDTH);
-                                        final int y = (int)(MathUtilsKt.bound((int)event.getY(), 0,
-                                                                              (int)(mapCanvases[layer].getHeight() - 1)) /
-                                                            mapZoom.get() / TILE_HEIGHT);
-
-                                        /*
-                                         * Caps newTiles.length in the event that x or y is close enough
-                                         * to the map's edge that selectedTiles goes off the edge
-                                         */
-                                        final int hLen = Math.min(tiles[0].length - x, selectedTiles[layer][0].length);
-                                        final int vLen = Math.min(tiles.length - y, selectedTiles[layer].length);
-
-                                        final int[][] newTiles = new int[vLen][hLen];
-
-                                        //newTiles potentially smaller in either dimension than selectedTiles, as per hLen & vLen
-                                        for (int r = 0; r < newTiles.length; ++r) {
-                                            System.arraycopy(selectedTiles[layer][r], 0, newTiles[r], 0, newTiles[r].length);
-                                        }
-
-                                        final int[][] oldTiles = new int[newTiles.length][newTiles[0].length];
-
-                                        boolean oldEqualsNew = true;
-
-                                        for (int r = y; r < y + newTiles.length /*&& r < tiles.length*/; ++r) {
-                                            //oldTiles stores only the tiles being replaced, a subset of the whole map
-                                            System.arraycopy(tiles[r], x, oldTiles[r - y], 0, oldTiles[r - y].length);
-
-                                            for (int c = x; c < x + newTiles[r - y].length /*&& c < tiles[r].length*/; ++c) {
-                                                if (oldTiles[r - y][c - x] != newTiles[r - y][c - x]) {
-                                                    oldEqualsNew = false;
-                                                    tileLayers[layer].setTile(c, r, newTiles[r - y][c - x]);
-                                                    redrawTile(layer, c, r);
-                                                }
-                                            }
-                                        }
-
-                                        if (!oldEqualsNew) {
-                                            addUndo(new UndoableMapDrawEdit(layer, x, y, oldTiles, newTiles));
-                                        }
-                                    }
+                            final int layer = selectedLayer.get().ordinal();
+                            if (mapCanvases[layer].isVisible() && 0 != tileLayers[layer].getWidth()) {
+                                switch (drawMode.get()) {
+                                    case FILL:
+                                        fill(layer, event.getX(), event.getY());
+                                        break;
+                                    case REPLACE:
+                                        replace(layer, event.getX(), event.getY(), event.isShiftDown());
+                                        break;
+                                    default:
+                                        beginStroke(layer);
+                                        strokeTo(event.getX(), event.getY());
+                                        break;
                                 }
-                                return null;
-                            }).run();
+                            }
+                        }
+                        catch (final Exception except) {
+                            Logger.INSTANCE.logThrowable("Exception in stackPane.setOnMousePressed()", except);
+                        }
+                    }
+                });
+                stackPane.setOnMouseDragged(event -> {
+                    if (null != stroke) {
+                        try {
+                            strokeTo(event.getX(), event.getY());
                         }
                         catch (final Exception except) {
-                            Logger.INSTANCE.logThrowable("Exception in stackPane.setOnMouseClicked()", except);
+                            Logger.INSTANCE.logThrowable("Exception in stackPane.setOnMouseDragged()", except);
                         }
                     }
                 });
-                //Note to self - don't use stackPane::fireEvent - causes StackOverflowException (infinite recursion I think)
-                //TODO: MouseDrag has its own handler as it will need one (e.g. for DrawMode.RECT)
-                stackPane.setOnMouseDragged(stackPane.getOnMouseClicked());
+                stackPane.setOnMouseReleased(event -> endStroke());
 
                 entityCanvas.setOnMouseClicked(event -> {
                     if (EditMode.ENTITY == editMode.get()) {
                         //TODO: Do I need to use MathUtil.bound() for this?
 
-                        final int x = (int)(event.getX() / mapZoom.get() / TILE_WIDTH);
-                        final int y = (int)(event.getY() / mapZoom.get() / TILE_HEIGHT);
-
-                        for (final PxPack.Entity e : entities) {
-                            if (x == e.getX() && y == e.getY()) {
-                                //TODO: Draw box or something around selected entity
-                                entityPane.setEntity(e);
-                                return;
-                            }
-                        }
+                        final int x = (int)((event.getX() + viewX) / mapZoom.get() / TILE_WIDTH);
+                        final int y = (int)((event.getY() + viewY) / mapZoom.get() / TILE_HEIGHT);
 
-                        entityPane.setEntity(null);
+                        //TODO: Draw box or something around selected entity
+                        final ArrayList<PxPack.Entity> hit = map.getEntitiesAt(x, y);
+                        entityPane.setEntity(hit.isEmpty() ? null : hit.get(0));
                     }
                 });
 
@@ -1562,9 +1673,8 @@ public final class MapEditTab extends FileEditTab {
                     final String title = MessageFormat.format(Messages.INSTANCE.get("MapEditTab.TileEditTab.Resize.TITLE"),
                                                               layerName);
 
-                    final int[][] oldTiles = mapPane.tileLayers[layer].getTiles();
-                    final int oldWidth = null == oldTiles ? 0 : oldTiles[0].length;
-                    final int oldHeight = null == oldTiles ? 0 : oldTiles.length;
+                    final int oldWidth = tileLayers[layer].getWidth();
+                    final int oldHeight = tileLayers[layer].getHeight();
 
                     final String currentSizeStr = MessageFormat.format(Messages.INSTANCE.get("MapEditTab.TileEditTab.Resize.CURRENT_SIZE"),
                                                                        oldWidth, oldHeight);
@@ -1601,13 +1711,11 @@ public final class MapEditTab extends FileEditTab {
                                 return;
                             }
 
-                            tileLayers[layer].resize(newWidth, newHeight);
+                            final PxPack.TileLayerSnapshot snapshot = tileLayers[layer].resize(newWidth, newHeight);
 
-                            fixCanvasSizes();
-                            redrawTileLayer(layer);
-                            redrawGridLayer();
+                            redrawResizedLayer(layer);
 
-                            addUndo(new UndoableMapResizeEdit(layer, oldTiles, tileLayers[layer].getTiles()));
+                            addUndo(new UndoableMapResizeEdit(layer, newWidth, newHeight, snapshot));
                         }
                     });
                 });
@@ -1640,491 +1748,1029 @@ public final class MapEditTab extends FileEditTab {
             }
 
             /**
-             * Redraws a single tile at the given coordinates on a given layer.
-             * Also draws its tile type if those are set to be visible.
-             *
-             * @param layer The layer the tile to redraw is in
-             * @param x The x coordinate of the tile to redraw
-             * @param y The y coordinate of the tile to redraw
+             * Starts a new stroke on {@code layer}, ending any stroke that is still in progress
              */
-            private void redrawTile(final int layer, final int x, final int y) {
-                try {
-                    //TODO: Create new Service subclass that takes layer, x, and y params in constructor and can be restarted on demand?
-                    FXUtil.INSTANCE.task(() -> {
-                        final int[][] tiles = tileLayers[layer].getTiles();
-                        if (null == tiles) {
-                            return null;
-                        }
-
-                        final PixelReader tilesetReader = tilesetPane.tilesets[layer].getPixelReader();
-                        if (null == tilesetReader) { //this should handle empty/nonexistent images
-                            return null;
-                        }
-
-                        final int tileIndex = tiles[y][x];
+            private void beginStroke(final int layer) {
+                endStroke();
 
-                        final Image tileImg;
+                stroke = new TileDelta.Builder();
+                strokeLayer = layer;
+                strokeX = -1;
+                strokeY = -1;
+            }
 
-                        PixelReader pxAttrImgReader;
-                        final Image tileTypeImg;
-                        Array2D<Integer> attributes;
-                        final boolean drawTileType;
+            /**
+             * Stamps the selected tiles of the stroke's layer at the tile under the given point of the map,
+             * unless that is where the stroke last stamped them. The point is bounded to be within the layer.
+             */
+            private void strokeTo(final double pointX, final double pointY) {
+                final PxPack.TileLayer tileLayer = tileLayers[strokeLayer];
 
-                        if (viewSettings.get().contains(ViewOption.TILE_TYPES) && selectedLayer.get().ordinal() == layer) {
-                            final PxAttr pxAttr = tilesetPane.pxAttrs[selectedLayer.get().ordinal()];
-                            attributes = pxAttr == null ? null : pxAttr.getAttributes();
-                            pxAttrImgReader = pxAttrImage.getPixelReader();
-                            if (!(drawTileType = (null != attributes && null != pxAttrImgReader))) {
-                                attributes = null;
-                                pxAttrImgReader = null;
-                            }
-                        }
-                        else {
-                            attributes = null;
-                            pxAttrImgReader = null;
-                            drawTileType = false;
+                final int x = tileX(tileLayer, pointX);
+                final int y = tileY(tileLayer, pointY);
+                if (x == strokeX && y == strokeY) {
+                    return;
+                }
+                strokeX = x;
+                strokeY = y;
+
+                final int[][] tiles = selectedTiles[strokeLayer];
+
+                //caps the stamped region in the event that selectedTiles goes off the edge of the layer
+                final int hLen = Math.min(tileLayer.getWidth() - x, tiles[0].length);
+                final int vLen = Math.min(tileLayer.getHeight() - y, tiles.length);
+
+                boolean changed = false;
+                for (int r = y; r < y + vLen; ++r) {
+                    for (int c = x; c < x + hLen; ++c) {
+                        final int oldTile = tileLayer.getTile(c, r);
+                        final int newTile = tiles[r - y][c - x];
+                        if (oldTile != newTile) {
+                            stroke.add(c, r, oldTile, newTile);
+                            tileLayer.setTile(c, r, newTile);
+                            changed = true;
                         }
+                    }
+                }
 
-                        final int tilesetX = tileIndex % TILES_PER_ROW;
-                        final int tilesetY = tileIndex / TILES_PER_ROW;
-
-                        tileImg = FXUtil.INSTANCE.scale(new WritableImage(tilesetReader,
-                                                                          tilesetX * TILE_WIDTH, tilesetY * TILE_HEIGHT,
-                                                                          TILE_WIDTH, TILE_HEIGHT), mapZoom.get());
-                        if (drawTileType) {
-                            final int attribute = attributes.get(tilesetX, tilesetY);
-                            final int attributesX = attribute % PXATTR_TILES_PER_ROW;
-                            final int attributesY = attribute / PXATTR_TILES_PER_ROW;
-
-                            tileTypeImg = FXUtil.INSTANCE.scale(new WritableImage(pxAttrImgReader,
-                                                                                  attributesX * PXATTR_TILE_WIDTH,
-                                                                                  attributesY * PXATTR_TILE_HEIGHT,
-                                                                                  PXATTR_TILE_WIDTH, PXATTR_TILE_HEIGHT),
-                                                                mapZoom.get() / PXATTR_TO_TILE_RATIO);
-                        }
-                        else {
-                            tileTypeImg = null;
-                        }
+                if (changed) {
+                    redrawRegion(strokeLayer, x, y, hLen, vLen);
+                }
+            }
 
-                        //TODO: Fix misalignment bug
-                        Platform.runLater(() -> {
-                            final GraphicsContext gContext = mapCanvases[layer].getGraphicsContext2D();
+            /**
+             * Ends the stroke in progress, if there is one, adding everything it changed as a single edit
+             */
+            void endStroke() {
+                if (null == stroke) {
+                    return;
+                }
 
-                            final double calcX = x * TILE_WIDTH * mapZoom.get();
-                            final double calcY = y * TILE_HEIGHT * mapZoom.get();
+                final TileDelta delta = stroke.build();
+                stroke = null;
+                if (!delta.isEmpty()) {
+                    addUndo(new UndoableMapDrawEdit(strokeLayer, delta));
+                }
+            }
 
-                            gContext.clearRect(calcX, calcY, tileImg.getWidth(), tileImg.getHeight());
+            /**
+             * Flood fills {@code layer} from the tile under the given point of the map with the top left selected
+             * tile, as a single edit. The point is bounded to be within the layer.
+             */
+            private void fill(final int layer, final double pointX, final double pointY) {
+                //a stroke can't be in progress while the mouse is being pressed, but just in case
+                endStroke();
+
+                final PxPack.TileLayer tileLayer = tileLayers[layer];
+                final TileDelta delta = tileLayer.floodFill(tileX(tileLayer, pointX), tileY(tileLayer, pointY),
+                                                            selectedTiles[layer][0][0]);
+                if (!delta.isEmpty()) {
+                    redrawRegion(layer, delta.getX(), delta.getY(), delta.getWidth(), delta.getHeight());
+                    addUndo(new UndoableMapDrawEdit(layer, delta));
+                }
+            }
 
-                            gContext.drawImage(tileImg, calcX, calcY);
+            /**
+             * Replaces every occurrence of the tile under the given point of the map with the top left selected
+             * tile, as a single edit. The point is bounded to be within {@code layer}.
+             *
+             * @param allLayers Whether to replace the tile in every layer rather than just {@code layer}
+             */
+            private void replace(final int layer, final double pointX, final double pointY, final boolean allLayers) {
+                endStroke();
 
-                            //null images ignored
-                            gContext.drawImage(tileTypeImg, calcX, calcY);
-                        });
+                final PxPack.TileLayer tileLayer = tileLayers[layer];
+                final int from = tileLayer.getTile(tileX(tileLayer, pointX), tileY(tileLayer, pointY));
+                final int to = selectedTiles[layer][0][0];
 
-                        return null;
-                    }).run();
+                final TileReplacement[] replacements = new TileReplacement[tileLayers.length];
+                boolean changed = false;
+                for (int i = 0; i < tileLayers.length; ++i) {
+                    if (allLayers || layer == i) {
+                        final TileReplacement replacement = tileLayers[i].replaceAll(from, to);
+                        if (!replacement.isEmpty()) {
+                            replacements[i] = replacement;
+                            redrawRegion(i, replacement.getX(), replacement.getY(),
+                                         replacement.getWidth(), replacement.getHeight());
+                            changed = true;
+                        }
+                    }
                 }
-                catch (final Exception except) {
-                    Logger.INSTANCE.logThrowable("Exception in redrawTile(" + layer + ", " + x + ", " + y + ", " + ')', except);
+
+                if (changed) {
+                    addUndo(new UndoableMapReplaceEdit(replacements));
                 }
             }
 
             /**
-             * Redraws an entire given layer, including tile types if they are set to be visible.
+             * Returns the x coordinate of the tile in {@code tileLayer} under the x coordinate {@code pointX}
+             * of the map, bounded to be within the layer
+             */
+            private int tileX(final PxPack.TileLayer tileLayer, final double pointX) {
+                return (int)(MathUtilsKt.bound((int)pointX, 0, (int)(tileLayer.getWidth() * TILE_WIDTH * mapZoom.get() - 1)) /
+                             mapZoom.get() / TILE_WIDTH);
+            }
+
+            /**
+             * Returns the y coordinate of the tile in {@code tileLayer} under the y coordinate {@code pointY}
+             * of the map, bounded to be within the layer
+             */
+            private int tileY(final PxPack.TileLayer tileLayer, final double pointY) {
+                return (int)(MathUtilsKt.bound((int)pointY, 0, (int)(tileLayer.getHeight() * TILE_HEIGHT * mapZoom.get() - 1)) /
+                             mapZoom.get() / TILE_HEIGHT);
+            }
+
+            /**
+             * Marks a rectangle of tiles in a given layer to be redrawn on the next pulse
+             *
+             * @param layer The layer the tiles to redraw are in
+             * @param x The x coordinate of the top left tile to redraw
+             * @param y The y coordinate of the top left tile to redraw
+             * @param width The number of columns of tiles to redraw
+             * @param height The number of rows of tiles to redraw
+             */
+            private void redrawRegion(final int layer, final int x, final int y, final int width, final int height) {
+                renderScheduler.markRegion(layer, x, y, width, height);
+            }
+
+            /**
+             * Marks an entire given layer to be redrawn on the next pulse
              *
              * @param layer The layer to redraw
              */
             private void redrawTileLayer(final int layer) {
-                try {
-                    //TODO: Create new Service subclass that takes layer param in constructor and can be restarted on demand?
-                    FXUtil.INSTANCE.task(() -> {
-                        final int[][] tiles = tileLayers[layer].getTiles();
-                        if (null == tiles) {
-                            return null;
-                        }
+                renderScheduler.markLayer(layer);
+            }
 
-                        final PixelReader tilesetReader = tilesetPane.tilesets[layer].getPixelReader();
-                        if (null == tilesetReader) { //this should handle empty/nonexistent images
-                            return null;
-                        }
+            /**
+             * Redraws all layers, including tile types if they are set to be visible.
+             */
+            private void redrawAllTileLayers() {
+                for (int i = 0; i < tileLayers.length; ++i) {
+                    redrawTileLayer(i);
+                }
+            }
 
-                        final WritablePixelFormat<ByteBuffer> pxFormat = PixelFormat.getByteBgraInstance();
+            private void redrawEntityLayer() {
+                renderScheduler.markEntities();
+            }
 
-                        final WritableImage layerImg = new WritableImage(tiles[0].length * TILE_WIDTH,
-                                                                         tiles.length * TILE_HEIGHT);
-                        final PixelWriter layerImgWriter = layerImg.getPixelWriter();
+            /**
+             * Marks a single entity to be redrawn on the next pulse, erasing it from wherever it was last drawn.
+             * Call this after changing anything about the entity that affects how it is drawn.
+             */
+            void redrawEntity(final PxPack.Entity entity) {
+                renderScheduler.markEntity(entity);
+            }
 
-                        /* *************************************** Tile Types *************************************** */
-                        PixelReader pxAttrImgReader = null;
-                        WritableImage tmpTileTypeImg = null;
-                        PixelWriter tileTypeImgWriter = null;
-                        Array2D<Integer> attributes = null;
-                        byte[] attrTile = null;
+            private void redrawGridLayer() {
+                renderScheduler.markGrid();
+            }
 
-                        boolean drawTileTypes = false;
+            /**
+             * Paints the tiles from ({@code left}, {@code top}) inclusive to ({@code right}, {@code bottom})
+             * exclusive on a given layer that are within the viewport, by drawing each one straight out of
+             * the tileset scaled to mapZoom. If tile types are set to be visible, the tiles are instead drawn
+             * out of the same atlas of tiles with their types over them that {@link #paintTileLayer(int)} uses.
+             */
+            private void paintTileRegion(final int layer, final int left, final int top,
+                                         final int right, final int bottom) {
+                //a running paint of the whole layer would draw over these tiles with what they were before
+                if (null != layerJobs[layer]) {
+                    final int[] region = regionsDuringJobs[layer];
+                    if (null == region) {
+                        regionsDuringJobs[layer] = new int[] {left, top, right, bottom};
+                    }
+                    else {
+                        region[0] = Math.min(region[0], left);
+                        region[1] = Math.min(region[1], top);
+                        region[2] = Math.max(region[2], right);
+                        region[3] = Math.max(region[3], bottom);
+                    }
+                }
 
-                        if (viewSettings.get().contains(ViewOption.TILE_TYPES) && selectedLayer.get().ordinal() == layer) {
-                            final PxAttr pxAttr = tilesetPane.pxAttrs[selectedLayer.get().ordinal()];
-                            attributes = pxAttr == null ? null : pxAttr.getAttributes();
-                            pxAttrImgReader = pxAttrImage.getPixelReader();
+                final PxPack.TileLayer tileLayer = tileLayers[layer];
 
-                            if (drawTileTypes = (null != attributes && null != pxAttrImgReader)) {
-                                tmpTileTypeImg = new WritableImage((int)layerImg.getWidth() * PXATTR_TO_TILE_RATIO,
-                                                                   (int)layerImg.getHeight() * PXATTR_TO_TILE_RATIO);
-                                tileTypeImgWriter = tmpTileTypeImg.getPixelWriter();
+                //tiles outside of the viewport are drawn when they are scrolled to
+                final int startX = Math.max(left, visibleStartX());
+                final int startY = Math.max(top, visibleStartY());
+                final int endX = Math.min(right, visibleEndX(tileLayer.getWidth()));
+                final int endY = Math.min(bottom, visibleEndY(tileLayer.getHeight()));
+                if (startX >= endX || startY >= endY) {
+                    return;
+                }
 
-                                attrTile = new byte[PXATTR_TILE_WIDTH * PXATTR_TILE_HEIGHT * 4];
-                            }
-                            else {
-                                attributes = null;
-                                pxAttrImgReader = null;
-                            }
-                        }
+                //the tilesets may not have finished loading yet
+                final Image tileset = null == tilesetPane.tilesets ? null : tilesetPane.tilesets[layer];
+                if (null == tileset || null == tileset.getPixelReader()) { //this should handle empty/nonexistent images
+                    return;
+                }
 
-                        final byte[] tile = new byte[TILE_WIDTH * TILE_HEIGHT * 4];
+                final double zoom = mapZoom.get();
+                final double tileWidth = TILE_WIDTH * zoom;
+                final double tileHeight = TILE_HEIGHT * zoom;
 
-                        for (int y = 0; y < tiles.length; ++y) {
-                            for (int x = 0; x < tiles[y].length; ++x) {
-                                /* ************************************* Tiles ************************************** */
-                                final int tilesetX = tiles[y][x] % TILES_PER_ROW;
-                                final int tilesetY = tiles[y][x] / TILES_PER_ROW;
+                final TileTable tileTypeAtlas =
+                        viewSettings.get().contains(ViewOption.TILE_TYPES) && selectedLayer.get().ordinal() == layer ?
+                        tileTypeAtlas(layer, ImageManager.INSTANCE.getTileTable(tilesetPane.tilesetNames[layer])) : null;
 
-                                tilesetReader.getPixels(tilesetX * TILE_WIDTH, tilesetY * TILE_HEIGHT,
-                                                        TILE_WIDTH, TILE_HEIGHT, pxFormat, tile, 0, TILE_WIDTH * 4);
+                final GraphicsContext gContext = mapCanvases[layer].getGraphicsContext2D();
+                gContext.clearRect(startX * tileWidth, startY * tileHeight,
+                                   (endX - startX) * tileWidth, (endY - startY) * tileHeight);
 
-                                layerImgWriter.setPixels(x * TILE_WIDTH, y * TILE_HEIGHT, TILE_WIDTH, TILE_HEIGHT,
-                                                         pxFormat, tile, 0, TILE_WIDTH * 4);
+                if (null != tileTypeAtlas) {
+                    final int[][] tiles = new int[endY - startY][endX - startX];
+                    tileLayer.copyRegion(startX, startY, endX - startX, endY - startY, tiles);
+                    gContext.drawImage(new TileRasterizer(tileTypeAtlas).rasterize(tiles, null),
+                                       startX * tileWidth, startY * tileHeight);
+                    return;
+                }
 
-                                /* *********************************** Tile Types *********************************** */
-                                if (drawTileTypes) {
-                                    final int attribute = attributes.get(tilesetX, tilesetY);
-                                    final int attributesX = attribute % PXATTR_TILES_PER_ROW;
-                                    final int attributesY = attribute / PXATTR_TILES_PER_ROW;
+                //the whole tileset is scaled once per zoom and each tile is blitted out of it
+                final Image tilesetAtlas = ImageManager.INSTANCE.getScaledImage(tilesetPane.tilesetNames[layer], true, zoom);
 
-                                    pxAttrImgReader.getPixels(attributesX * PXATTR_TILE_WIDTH,
-                                                              attributesY * PXATTR_TILE_HEIGHT,
-                                                              PXATTR_TILE_WIDTH, PXATTR_TILE_HEIGHT, pxFormat,
-                                                              attrTile, 0, PXATTR_TILE_WIDTH * 4);
+                for (int y = startY; y < endY; ++y) {
+                    for (int x = startX; x < endX; ++x) {
+                        final int tile = tileLayer.getTile(x, y);
+                        final int tilesetX = tile % TILES_PER_ROW;
+                        final int tilesetY = tile / TILES_PER_ROW;
 
-                                    tileTypeImgWriter.setPixels(x * PXATTR_TILE_WIDTH,
-                                                                y * PXATTR_TILE_HEIGHT,
-                                                                PXATTR_TILE_WIDTH, PXATTR_TILE_HEIGHT,
-                                                                pxFormat, attrTile, 0, PXATTR_TILE_WIDTH * 4);
-                                }
-                            }
+                        final double calcX = x * tileWidth;
+                        final double calcY = y * tileHeight;
+
+                        gContext.drawImage(tilesetAtlas, tilesetX * tileWidth, tilesetY * tileHeight,
+                                           tileWidth, tileHeight, calcX, calcY, tileWidth, tileHeight);
+                    }
+                }
+            }
+
+            /**
+             * Paints the part of an entire given layer within the viewport, including tile types if they
+             * are set to be visible. The tiles are copied here, but the image of them is built and scaled
+             * on renderExecutor, replacing any paint of this layer that was still running. Only drawing
+             * the finished image onto the layer's canvas is done on the JavaFX thread.
+             *
+             * @param layer The layer to paint
+             */
+            private void paintTileLayer(final int layer) {
+                cancelJob(layerJobs[layer]);
+                layerJobs[layer] = null;
+                regionsDuringJobs[layer] = null;
+                final int generation = ++layerGenerations[layer];
+
+                final PxPack.TileLayer tileLayer = tileLayers[layer];
+
+                //only the tiles within the viewport are drawn
+                final int startX = visibleStartX();
+                final int startY = visibleStartY();
+                final int endX = visibleEndX(tileLayer.getWidth());
+                final int endY = visibleEndY(tileLayer.getHeight());
+                if (startX >= endX || startY >= endY) {
+                    clearCanvas(mapCanvases[layer]);
+                    return;
+                }
+
+                //the tilesets may not have finished loading yet
+                final Image tileset = null == tilesetPane.tilesets ? null : tilesetPane.tilesets[layer];
+                if (null == tileset || null == tileset.getPixelReader()) { //this should handle empty/nonexistent images
+                    return;
+                }
+                final TileTable tileTable = ImageManager.INSTANCE.getTileTable(tilesetPane.tilesetNames[layer]);
+
+                //copied so that the job doesn't see edits or resizes made while it runs
+                final int[][] tiles = new int[endY - startY][endX - startX];
+                tileLayer.copyRegion(startX, startY, endX - startX, endY - startY, tiles);
+
+                /* ******************************************* Tile Types ******************************************* */
+                //when tile types are drawn, tiles are taken straight from the atlas of tiles with their types over them
+                final TileTable tileTypeAtlas =
+                        viewSettings.get().contains(ViewOption.TILE_TYPES) && selectedLayer.get().ordinal() == layer ?
+                        tileTypeAtlas(layer, tileTable) : null;
+
+                final double zoom = mapZoom.get();
+
+                layerJobs[layer] = renderExecutor.submit(() -> {
+                    try {
+                        //the visible tiles are drawn into a single frame by bands of rows in parallel
+                        final Image scaledImg = null != tileTypeAtlas ?
+                                                new TileRasterizer(tileTypeAtlas).rasterize(tiles, null) :
+                                                FXUtil.INSTANCE.scale(new TileRasterizer(tileTable).rasterize(tiles, null),
+                                                                      zoom);
+
+                        //a newer paint of this layer has replaced this one
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
                         }
 
-                        final Image typeImg = FXUtil.INSTANCE.scale(tmpTileTypeImg, mapZoom.get() / PXATTR_TO_TILE_RATIO);
+                        final double drawX = startX * TILE_WIDTH * zoom;
+                        final double drawY = startY * TILE_HEIGHT * zoom;
                         Platform.runLater(() -> {
+                            if (generation != layerGenerations[layer]) {
+                                return;
+                            }
+                            layerJobs[layer] = null;
+
                             final GraphicsContext layerGContext = mapCanvases[layer].getGraphicsContext2D();
 
-                            layerGContext.clearRect(0, 0, mapCanvases[layer].getWidth(), mapCanvases[layer].getHeight());
+                            clearCanvas(mapCanvases[layer]);
 
-                            layerGContext.drawImage(FXUtil.INSTANCE.scale(layerImg, mapZoom.get()), 0, 0);
-                            //null images ignored
-                            layerGContext.drawImage(typeImg, 0, 0);
-                        });
+                            layerGContext.drawImage(scaledImg, drawX, drawY);
 
-                        return null;
-                    }).run();
-                }
-                catch (final Exception except) {
-                    Logger.INSTANCE.logThrowable("Exception in redrawTileLayer(" + layer + ')', except);
-                }
+                            //tiles painted while this job ran were just painted over with what they were before
+                            final int[] region = regionsDuringJobs[layer];
+                            if (null != region) {
+                                regionsDuringJobs[layer] = null;
+                                paintTileRegion(layer, region[0], region[1], region[2], region[3]);
+                            }
+                        });
+                    }
+                    catch (final Exception except) {
+                        Logger.INSTANCE.logThrowable("Exception in paintTileLayer(" + layer + ')', except);
+                    }
+                });
             }
 
             /**
-             * Redraws all layers, including tile types if they are set to be visible.
+             * Paints the entities within the viewport. Like {@link #paintTileLayer(int)}, the image of their
+             * sprites is built and scaled on renderExecutor, replacing any paint of them that was still running.
              */
-            private void redrawAllTileLayers() {
-                for (int i = 0; i < tileLayers.length; ++i) {
-                    redrawTileLayer(i);
+            private void paintEntityLayer() {
+                cancelJob(entityJob);
+                entityJob = null;
+                final int generation = ++entityGeneration;
+
+                //only the entities within the viewport are drawn
+                final int startX = visibleStartX();
+                final int startY = visibleStartY();
+                final int endX = visibleEndX(Integer.MAX_VALUE);
+                final int endY = visibleEndY(Integer.MAX_VALUE);
+
+                //{x, y, type} of each visible entity, copied so that the job doesn't see them change
+                final ArrayList<PxPack.Entity> visibleEntities = map.getEntitiesIn(startX, startY, endX - startX,
+                                                                                  endY - startY);
+                final ArrayList<int[]> visible = new ArrayList<>(visibleEntities.size());
+                for (final PxPack.Entity e : visibleEntities) {
+                    visible.add(new int[] {e.getX(), e.getY(), e.getType()});
                 }
-            }
 
-            private void redrawEntityLayer() {
-                try {
-                    FXUtil.INSTANCE.task(() -> {
-                        //TODO: Two of these just call Platform.runLater(), so should only sprite drawing go in a Task?
-
-                        //TODO: Single image that is modified, then scale and drawn onto Canvas?
-                        final GraphicsContext gContext = entityCanvas.getGraphicsContext2D();
+                final boolean drawSprites =
+                        EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_SPRITES);
+                final boolean drawBoxes =
+                        EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_BOXES);
 
-                        Platform.runLater(() -> gContext.clearRect(0, 0, entityCanvas.getWidth(),
-                                                                   entityCanvas.getHeight()));
+                final PixelReader entitiesImgReader = null == entityImage ? null : entityImage.getPixelReader();
+                final double zoom = mapZoom.get();
 
+                entityJob = renderExecutor.submit(() -> {
+                    try {
                         /* ************************************* Entity Sprites ************************************* */
-                        if (EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_SPRITES)) {
-                            final PixelReader entitiesImgReader = entityImage.getPixelReader();
-                            if (null != entitiesImgReader) {
-                                final WritablePixelFormat<ByteBuffer> pxFormat = PixelFormat.getByteBgraInstance();
+                        Image spritesImg = null;
+                        if (drawSprites && null != entitiesImgReader) {
+                            final WritablePixelFormat<ByteBuffer> pxFormat = PixelFormat.getByteBgraInstance();
 
-                                //TODO: Verify all of this is right and stuff
-                                //TODO: More elegant width/height solution?
+                            /*
+                             * entitiesImg is unscaled (as per mapZoom), but the size
+                             * of an entity in entityImage is 16px by 16px, which is
+                             * double that of tiles in a tileset, which are 8px by 8px.
+                             */
+                            final WritableImage entitiesImg =
+                                    new WritableImage(Math.max(1, endX - startX) * ENTITY_WIDTH,
+                                                      Math.max(1, endY - startY) * ENTITY_HEIGHT);
+                            final PixelWriter entitiesImgWriter = entitiesImg.getPixelWriter();
+
+                            final byte[] entityBuf = new byte[ENTITY_WIDTH * ENTITY_HEIGHT * 4];
+
+                            for (final int[] e : visible) {
+                                if (Thread.currentThread().isInterrupted()) {
+                                    return;
+                                }
 
-                                /*
-                                 * entitiesImg is unscaled (as per mapZoom), but the size
-                                 * of an entity in entityImage is 16px by 16px, which is
-                                 * double that of tiles in a tileset, which are 8px by 8px.
-                                 */
-                                final WritableImage entitiesImg =
-                                        new WritableImage((int)(entityCanvas.getWidth() / mapZoom.get()) *
-                                                          ENTITY_TO_TILE_RATIO,
-                                                          (int)(entityCanvas.getHeight() / mapZoom.get()) *
-                                                          ENTITY_TO_TILE_RATIO);
-                                final PixelWriter entitiesImgWriter = entitiesImg.getPixelWriter();
+                                final int index = e[2];
+                                final int imgX = (index % ENTITIES_PER_ROW) * ENTITY_WIDTH;
+                                final int imgY = (index / ENTITIES_PER_ROW) * ENTITY_HEIGHT;
 
-                                final byte[] entityBuf = new byte[ENTITY_WIDTH * ENTITY_HEIGHT * 4];
+                                entitiesImgReader.getPixels(imgX, imgY, ENTITY_WIDTH, ENTITY_HEIGHT,
+                                                            pxFormat, entityBuf, 0, ENTITY_WIDTH * 4);
 
-                                for (final PxPack.Entity e : entities) {
-                                    final int index = e.getType();
-                                    final int imgX = (index % ENTITIES_PER_ROW) * ENTITY_WIDTH;
-                                    final int imgY = (index / ENTITIES_PER_ROW) * ENTITY_HEIGHT;
+                                entitiesImgWriter.setPixels((e[0] - startX) * ENTITY_WIDTH, (e[1] - startY) * ENTITY_HEIGHT,
+                                                            ENTITY_WIDTH, ENTITY_HEIGHT,
+                                                            pxFormat, entityBuf, 0, ENTITY_WIDTH * 4);
+                            }
 
-                                    entitiesImgReader.getPixels(imgX, imgY, ENTITY_WIDTH, ENTITY_HEIGHT,
-                                                                pxFormat, entityBuf, 0, ENTITY_WIDTH * 4);
+                            spritesImg = FXUtil.INSTANCE.scale(entitiesImg, zoom / ENTITY_TO_TILE_RATIO);
+                        }
 
-                                    entitiesImgWriter.setPixels(e.getX() * ENTITY_WIDTH, e.getY() * ENTITY_HEIGHT,
-                                                                ENTITY_WIDTH, ENTITY_HEIGHT,
-                                                                pxFormat, entityBuf, 0, ENTITY_WIDTH * 4);
-                                }
+                        final Image sprites = spritesImg;
+                        Platform.runLater(() -> {
+                            if (generation != entityGeneration) {
+                                return;
+                            }
+                            entityJob = null;
 
-                                Platform.runLater(() -> gContext.drawImage(FXUtil.INSTANCE.scale(entitiesImg,
-                                                                                                 mapZoom.get() /
-                                                                                                 ENTITY_TO_TILE_RATIO),
-                                                                           0, 0));
+                            final GraphicsContext gContext = entityCanvas.getGraphicsContext2D();
+
+                            clearCanvas(entityCanvas);
+
+                            drawnEntities.clear();
+                            for (int i = 0; i < visibleEntities.size(); ++i) {
+                                drawnEntities.put(visibleEntities.get(i), visible.get(i));
                             }
-                        }
 
-                        /* ************************************** Entity Boxes ************************************** */
-                        if (EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_BOXES)) {
-                            Platform.runLater(() -> {
-                                for (final PxPack.Entity e : entities) {
-                                    gContext.strokeRect(e.getX() * TILE_WIDTH * mapZoom.get(),
-                                                        e.getY() * TILE_HEIGHT * mapZoom.get(),
-                                                        TILE_WIDTH * mapZoom.get(), TILE_HEIGHT * mapZoom.get());
+                            //null images ignored
+                            gContext.drawImage(sprites, startX * TILE_WIDTH * zoom, startY * TILE_HEIGHT * zoom);
+
+                            /* ************************************ Entity Boxes ************************************ */
+                            if (drawBoxes) {
+                                for (final int[] e : visible) {
+                                    gContext.strokeRect(e[0] * TILE_WIDTH * zoom, e[1] * TILE_HEIGHT * zoom,
+                                                        TILE_WIDTH * zoom, TILE_HEIGHT * zoom);
                                 }
-                            });
-                        }
+                            }
 
-                        /*
-                         * TODO:
-                         * Text is drawn above the entity - change the baseline attribute to fix this
-                         * Split text onto multiple lines as needed rather than squising it
-                         * Redraw layer (at least names) when a name is changed
-                         * Change size as mapZoom changes?
-                         */
-                        /* ************************************** Entity Names ************************************** */
-                        /*if (EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_NAMES)) {
-                            Platform.runLater(() -> {
+                            /*
+                             * TODO:
+                             * Text is drawn above the entity - change the baseline attribute to fix this
+                             * Split text onto multiple lines as needed rather than squising it
+                             * Redraw layer (at least names) when a name is changed
+                             * Change size as mapZoom changes?
+                             */
+                            /* ************************************ Entity Names ************************************ */
+                            /*if (EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_NAMES)) {
                                 for (final PxPack.Entity e : entities) {
                                     gContext.fillText(e.getName(),
                                                       e.getX() * TILE_WIDTH * mapZoom.get(),
                                                       e.getY() * TILE_HEIGHT * mapZoom.get(),
                                                       TILE_WIDTH * mapZoom.get());
                                 }
-                            });
-                        }*/
+                            }*/
+                        });
+                    }
+                    catch (final Exception except) {
+                        Logger.INSTANCE.logThrowable("Exception in paintEntityLayer()", except);
+                    }
+                });
+            }
+
+            /**
+             * Repaints only the tiles that the given entities were last drawn at and are now at. Each of those
+             * tiles is cleared, along with the edges of the boxes around it, and every entity that overlaps the
+             * cleared area is drawn again within it. Sprites are drawn straight out of entityImage scaled to mapZoom.
+             */
+            private void paintEntities(final Collection<PxPack.Entity> dirty) {
+                //a running paint of all of the entities would draw over these with what they were before
+                if (null != entityJob) {
+                    paintEntityLayer();
+                    return;
+                }
+
+                final int startX = visibleStartX();
+                final int startY = visibleStartY();
+                final int endX = visibleEndX(Integer.MAX_VALUE);
+                final int endY = visibleEndY(Integer.MAX_VALUE);
+
+                //the tiles to repaint, as (x << 32) | y
+                final HashSet<Long> tiles = new HashSet<>();
+                for (final PxPack.Entity e : dirty) {
+                    final int[] drawnAt = drawnEntities.remove(e);
+                    if (null != drawnAt) {
+                        tiles.add(((long)drawnAt[0] << 32) | drawnAt[1]);
+                    }
+
+                    if (startX <= e.getX() && e.getX() < endX && startY <= e.getY() && e.getY() < endY &&
+                        map.getEntitiesAt(e.getX(), e.getY()).contains(e)) {
+                        tiles.add(((long)e.getX() << 32) | e.getY());
+                        drawnEntities.put(e, new int[] {e.getX(), e.getY(), e.getType()});
+                    }
+                }
+
+                final boolean drawSprites =
+                        EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_SPRITES);
+                final boolean drawBoxes =
+                        EditMode.ENTITY == editMode.get() || viewSettings.get().contains(ViewOption.ENTITY_BOXES);
+
+                final double zoom = mapZoom.get();
+                final double tileWidth = TILE_WIDTH * zoom;
+                final double tileHeight = TILE_HEIGHT * zoom;
+                final Image sprites = drawSprites ? scaledEntityImages.get(entityImage, zoom / ENTITY_TO_TILE_RATIO) : null;
+
+                final GraphicsContext gContext = entityCanvas.getGraphicsContext2D();
+                //boxes are stroked on the edges of their tiles, so half of each line lies in the surrounding tiles
+                final double margin = gContext.getLineWidth() / 2;
+
+                for (final long tile : tiles) {
+                    final int x = (int)(tile >>> 32);
+                    final int y = (int)tile;
+
+                    final double areaX = (x * tileWidth) - margin;
+                    final double areaY = (y * tileHeight) - margin;
+                    final double areaWidth = tileWidth + (margin * 2);
+                    final double areaHeight = tileHeight + (margin * 2);
+
+                    gContext.save();
+                    gContext.beginPath();
+                    gContext.rect(areaX, areaY, areaWidth, areaHeight);
+                    gContext.clip();
+                    gContext.clearRect(areaX, areaY, areaWidth, areaHeight);
+
+                    //entities in the surrounding tiles may have boxes that reach into this one
+                    final ArrayList<int[]> overlapping = new ArrayList<>();
+                    for (final PxPack.Entity e : map.getEntitiesIn(x - 1, y - 1, 3, 3)) {
+                        final int[] drawn = drawnEntities.get(e);
+                        if (null != drawn) {
+                            overlapping.add(drawn);
+                        }
+                    }
+
+                    if (null != sprites) {
+                        for (final int[] e : overlapping) {
+                            gContext.drawImage(sprites,
+                                               (e[2] % ENTITIES_PER_ROW) * tileWidth, (e[2] / ENTITIES_PER_ROW) * tileHeight,
+                                               tileWidth, tileHeight,
+                                               e[0] * tileWidth, e[1] * tileHeight, tileWidth, tileHeight);
+                        }
+                    }
+                    if (drawBoxes) {
+                        for (final int[] e : overlapping) {
+                            gContext.strokeRect(e[0] * tileWidth, e[1] * tileHeight, tileWidth, tileHeight);
+                        }
+                    }
 
-                        return null;
-                    }).run();
+                    gContext.restore();
                 }
-                catch (final Exception except) {
-                    Logger.INSTANCE.logThrowable("Exception in redrawEntityLayer()", except);
+            }
+
+            /**
+             * Returns the atlas of the tiles in {@code tileTable}, the given layer's tileset, scaled to mapZoom
+             * with their tile types drawn over them, building it if needed. Returns null if there is no PxAttr
+             * for the layer or no pxAttrImage to draw tile types from.
+             */
+            private TileTable tileTypeAtlas(final int layer, final TileTable tileTable) {
+                final PxAttr pxAttr = null == tilesetPane.pxAttrs ? null : tilesetPane.pxAttrs[layer];
+                if (null == pxAttr) {
+                    return null;
+                }
+
+                if (null == pxAttrTileTable && null != pxAttrImage) {
+                    pxAttrTileTable = TileTable.decode(pxAttrImage, PXATTR_TILE_WIDTH, PXATTR_TILE_HEIGHT);
+                }
+                if (null == pxAttrTileTable) {
+                    return null;
+                }
+
+                final double zoom = mapZoom.get();
+                if (null == tileTypeAtlases[layer] || zoom != tileTypeAtlasZooms[layer] ||
+                    tileTable != tileTypeAtlasTilesets[layer] || pxAttr != tileTypeAtlasPxAttrs[layer]) {
+                    //the tile type of each tile in the tileset, by tile index
+                    final Array2D<Integer> attrs = pxAttr.getAttributes();
+                    final int[] attributes = new int[TILES_PER_ROW * TILES_PER_COLUMN];
+                    for (int y = 0; y < Math.min(TILES_PER_COLUMN, attrs.getHeight()); ++y) {
+                        for (int x = 0; x < Math.min(TILES_PER_ROW, attrs.getWidth()); ++x) {
+                            attributes[(y * TILES_PER_ROW) + x] = attrs.get(x, y);
+                        }
+                    }
+
+                    tileTypeAtlases[layer] = tileTable.scale(zoom)
+                                                      .overlay(pxAttrTileTable.scale(zoom / PXATTR_TO_TILE_RATIO),
+                                                               attributes);
+                    tileTypeAtlasZooms[layer] = zoom;
+                    tileTypeAtlasTilesets[layer] = tileTable;
+                    tileTypeAtlasPxAttrs[layer] = pxAttr;
                 }
+
+                return tileTypeAtlases[layer];
             }
 
-            private void redrawGridLayer() {
+            /**
+             * Drops the atlas of tiles with their tile types for the given layer, so that it is rebuilt
+             * the next time it is drawn. Called whenever an attribute in the layer's PxAttr is set.
+             */
+            private void invalidateTileTypeAtlas(final int layer) {
+                tileTypeAtlases[layer] = null;
+            }
+
+            /**
+             * Cancels {@code job} if it isn't null, interrupting it if it has already started
+             */
+            private void cancelJob(final Future<?> job) {
+                if (null != job) {
+                    job.cancel(true);
+                }
+            }
+
+            private void paintGridLayer() {
                 final GraphicsContext gContext = gridCanvas.getGraphicsContext2D();
-                gContext.clearRect(0, 0, gridCanvas.getWidth(), gridCanvas.getHeight());
+                clearCanvas(gridCanvas);
+
+                final double tileWidth = TILE_WIDTH * mapZoom.get();
+                final double tileHeight = TILE_HEIGHT * mapZoom.get();
 
-                for (int y = 0; y < gridCanvas.getHeight(); y += (TILE_HEIGHT * mapZoom.get())) {
-                    gContext.strokeLine(0, y, gridCanvas.getWidth() - 1, y);
+                //only the lines within the viewport are drawn
+                final double left = visibleStartX() * tileWidth;
+                final double top = visibleStartY() * tileHeight;
+                final double right = Math.min(contentWidth, viewX + viewWidth) - 1;
+                final double bottom = Math.min(contentHeight, viewY + viewHeight) - 1;
+
+                for (int y = visibleStartY(); y < visibleEndY(Integer.MAX_VALUE); ++y) {
+                    gContext.strokeLine(left, (int)(y * tileHeight), right, (int)(y * tileHeight));
                 }
-                for (int x = 0; x < gridCanvas.getWidth(); x += (TILE_WIDTH * mapZoom.get())) {
-                    gContext.strokeLine(x, 0, x, gridCanvas.getHeight() - 1);
+                for (int x = visibleStartX(); x < visibleEndX(Integer.MAX_VALUE); ++x) {
+                    gContext.strokeLine((int)(x * tileWidth), top, (int)(x * tileWidth), bottom);
                 }
             }
 
             /**
-             * Fixes the sizes of the {@code Canvas}es
+             * Fixes the size of the map's content to fit the largest layer, and the sizes of the
+             * {@code Canvas}es to fit the viewport
+             *
+             * @return true if the viewport changed, in which case every {@code Canvas} must be redrawn
              */
-            private void fixCanvasSizes() {
+            private boolean fixCanvasSizes() {
                 double maxWidth = 0, maxHeight = 0;
-                for (int i = 0; i < tileLayers.length; ++i) {
-                    final int[][] tiles = tileLayers[i].getTiles();
-                    if (null == tiles) {
-                        mapCanvases[i].setWidth(0);
-                        mapCanvases[i].setHeight(0);
-                        continue;
-                    }
+                for (final PxPack.TileLayer tileLayer : tileLayers) {
+                    maxWidth = Math.max(maxWidth, tileLayer.getWidth() * TILE_WIDTH * mapZoom.get());
+                    maxHeight = Math.max(maxHeight, tileLayer.getHeight() * TILE_HEIGHT * mapZoom.get());
+                }
 
-                    final double width = tiles[0].length * TILE_WIDTH * mapZoom.get();
-                    final double height = tiles.length * TILE_HEIGHT * mapZoom.get();
+                contentWidth = maxWidth;
+                contentHeight = maxHeight;
 
-                    if (width > maxWidth) {
-                        maxWidth = width;
-                    }
-                    if (height > maxHeight) {
-                        maxHeight = height;
-                    }
+                stackPane.setMinSize(contentWidth, contentHeight);
+                stackPane.setPrefSize(contentWidth, contentHeight);
+
+                return updateViewport();
+            }
 
-                    mapCanvases[i].setWidth(width);
-                    mapCanvases[i].setHeight(height);
+            /**
+             * Fixes the sizes of the {@code Canvas}es after tile layer {@code layer} was resized and redraws it,
+             * or everything if the viewport moved
+             */
+            private void redrawResizedLayer(final int layer) {
+                if (fixCanvasSizes()) {
+                    redrawAllTileLayers();
+                    redrawEntityLayer();
+                    clearCanvas(cursorCanvas);
                 }
+                else {
+                    redrawTileLayer(layer);
+                }
+                redrawGridLayer();
+            }
 
-                entityCanvas.setWidth(maxWidth);
-                entityCanvas.setHeight(maxHeight);
+            /**
+             * Moves and resizes the {@code Canvas}es to cover the part of the map within the viewport
+             *
+             * @return true if the viewport changed since the last call
+             */
+            private boolean updateViewport() {
+                final Bounds viewport = getViewportBounds();
+
+                final double hRange = getHmax() - getHmin();
+                final double vRange = getVmax() - getVmin();
+                final double hFraction = 0 == hRange ? 0 : (getHvalue() - getHmin()) / hRange;
+                final double vFraction = 0 == vRange ? 0 : (getVvalue() - getVmin()) / vRange;
+
+                //whole pixels so that tiles aren't drawn blurry
+                final double x = Math.floor(hFraction * Math.max(0, contentWidth - viewport.getWidth()));
+                final double y = Math.floor(vFraction * Math.max(0, contentHeight - viewport.getHeight()));
+                final double width = Math.ceil(Math.min(viewport.getWidth(), contentWidth));
+                final double height = Math.ceil(Math.min(viewport.getHeight(), contentHeight));
+
+                if (x == viewX && y == viewY && width == viewWidth && height == viewHeight) {
+                    return false;
+                }
 
-                cursorCanvas.setWidth(maxWidth);
-                cursorCanvas.setHeight(maxHeight);
+                viewX = x;
+                viewY = y;
+                viewWidth = width;
+                viewHeight = height;
+
+                for (final Node n : stackPane.getChildren()) {
+                    final Canvas canvas = (Canvas)n;
+                    canvas.setWidth(viewWidth);
+                    canvas.setHeight(viewHeight);
+                    canvas.setTranslateX(viewX);
+                    canvas.setTranslateY(viewY);
+                    canvas.getGraphicsContext2D().setTransform(1, 0, 0, 1, -viewX, -viewY);
+                }
 
-                gridCanvas.setWidth(maxWidth);
-                gridCanvas.setHeight(maxHeight);
+                return true;
             }
 
-            private final class UndoableMapDrawEdit implements UndoableEdit {
-                private final int layer;
-                private final int x;
-                private final int y;
-                private final int[][] oldTiles;
-                private final int[][] newTiles;
+            /**
+             * Clears the part of {@code canvas} within the viewport, which is all of it
+             */
+            private void clearCanvas(final Canvas canvas) {
+                canvas.getGraphicsContext2D().clearRect(viewX, viewY, canvas.getWidth(), canvas.getHeight());
+            }
 
-                UndoableMapDrawEdit(final int layer, final int x, final int y,
-                                    final int[][] oldTiles, final int[][] newTiles) {
-                    NullArgumentException.Companion.requireNonNull(oldTiles, "UndoableMapDrawEdit", "oldTiles");
-                    NullArgumentException.Companion.requireNonNull(newTiles, "UndoableMapDrawEdit", "newTiles");
+            private int visibleStartX() {
+                return (int)(viewX / (TILE_WIDTH * mapZoom.get()));
+            }
 
-                    if (0 == oldTiles.length) {
-                        throw new IllegalArgumentException("Attempt to initialize new UndoableMapDrawEdit " +
-                                                           "with oldTiles with height of 0");
+            private int visibleStartY() {
+                return (int)(viewY / (TILE_HEIGHT * mapZoom.get()));
+            }
+
+            /**
+             * Returns the column after the last one at least partly within the viewport, capped at {@code width}
+             */
+            private int visibleEndX(final int width) {
+                return (int)Math.min(width, Math.ceil((viewX + viewWidth) / (TILE_WIDTH * mapZoom.get())));
+            }
+
+            /**
+             * Returns the row after the last one at least partly within the viewport, capped at {@code height}
+             */
+            private int visibleEndY(final int height) {
+                return (int)Math.min(height, Math.ceil((viewY + viewHeight) / (TILE_HEIGHT * mapZoom.get())));
+            }
+
+            /**
+             * Collects what needs to be redrawn and paints all of it at the next pulse. Many changes made
+             * at once, such as a large stamp or undoing a big edit, then cost a single paint, with all of
+             * the dirty tiles in a layer merged into the rectangle bounding them.
+             */
+            private final class RenderScheduler extends AnimationTimer {
+                //{left, top, right, bottom} of the tiles to redraw in each layer (right and bottom exclusive), or null
+                private final int[][] dirtyRegions = new int[PxPack.NUM_LAYERS][];
+                private final boolean[] dirtyLayers = new boolean[PxPack.NUM_LAYERS];
+
+                private boolean entitiesDirty;
+                private final Set<PxPack.Entity> dirtyEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+                private boolean gridDirty;
+
+                private boolean scheduled;
+
+                void markRegion(final int layer, final int x, final int y, final int width, final int height) {
+                    if (!dirtyLayers[layer]) {
+                        final int[] region = dirtyRegions[layer];
+                        if (null == region) {
+                            dirtyRegions[layer] = new int[] {x, y, x + width, y + height};
+                        }
+                        else {
+                            region[0] = Math.min(region[0], x);
+                            region[1] = Math.min(region[1], y);
+                            region[2] = Math.max(region[2], x + width);
+                            region[3] = Math.max(region[3], y + height);
+                        }
                     }
-                    if (0 == oldTiles[0].length) {
-                        throw new IllegalArgumentException("Attempt to initialize new UndoableMapDrawEdit " +
-                                                           "with oldTiles with width of 0");
+                    schedule();
+                }
+
+                void markLayer(final int layer) {
+                    dirtyLayers[layer] = true;
+                    dirtyRegions[layer] = null;
+                    schedule();
+                }
+
+                void markEntities() {
+                    entitiesDirty = true;
+                    dirtyEntities.clear();
+                    schedule();
+                }
+
+                void markEntity(final PxPack.Entity entity) {
+                    if (!entitiesDirty) {
+                        dirtyEntities.add(entity);
                     }
+                    schedule();
+                }
 
-                    if (0 == newTiles.length) {
-                        throw new IllegalArgumentException("Attempt to initialize new UndoableMapDrawEdit " +
-                                                           "with newTiles with height of 0");
+                void markGrid() {
+                    gridDirty = true;
+                    schedule();
+                }
+
+                private void schedule() {
+                    if (!scheduled) {
+                        scheduled = true;
+                        start();
                     }
-                    if (0 == newTiles[0].length) {
-                        throw new IllegalArgumentException("Attempt to initialize new UndoableMapDrawEdit " +
-                                                           "with newTiles with width of 0");
+                }
+
+                @Override
+                public void handle(final long now) {
+                    stop();
+                    scheduled = false;
+
+                    for (int layer = 0; layer < dirtyLayers.length; ++layer) {
+                        final int[] region = dirtyRegions[layer];
+                        if (dirtyLayers[layer]) {
+                            dirtyLayers[layer] = false;
+                            paintTileLayer(layer);
+                        }
+                        else if (null != region) {
+                            dirtyRegions[layer] = null;
+                            paintTileRegion(layer, region[0], region[1], region[2], region[3]);
+                        }
+                    }
+
+                    if (entitiesDirty) {
+                        entitiesDirty = false;
+                        paintEntityLayer();
                     }
+                    else if (!dirtyEntities.isEmpty()) {
+                        final ArrayList<PxPack.Entity> dirty = new ArrayList<>(dirtyEntities);
+                        dirtyEntities.clear();
+                        paintEntities(dirty);
+                    }
+                    if (gridDirty) {
+                        gridDirty = false;
+                        paintGridLayer();
+                    }
+                }
+            }
+
+            private final class UndoableMapDrawEdit implements SpillableEdit {
+                private final int layer;
+
+                //null while spilled
+                private TileDelta delta;
 
-                    if (oldTiles.length != newTiles.length || oldTiles[0].length != newTiles[0].length) {
+                UndoableMapDrawEdit(final int layer, final TileDelta delta) {
+                    NullArgumentException.Companion.requireNonNull(delta, "UndoableMapDrawEdit", "delta");
+                    if (delta.isEmpty()) {
                         throw new IllegalArgumentException("Attempt to initialize new UndoableMapDrawEdit " +
-                                                           "with oldTiles and newTiles with unequal dimensions");
+                                                           "with delta that changes no tiles");
                     }
 
                     this.layer = layer;
-                    this.x = x;
-                    this.y = y;
+                    this.delta = delta;
+                }
 
-                    this.oldTiles = new int[oldTiles.length][oldTiles[0].length];
-                    for (int i = 0; i < oldTiles.length; ++i) {
-                        System.arraycopy(oldTiles[i], 0, this.oldTiles[i], 0, oldTiles[i].length);
-                    }
+                @Override
+                public void undo() {
+                    delta.revert(tileLayers[layer]);
+                    redrawRegion(layer, delta.getX(), delta.getY(), delta.getWidth(), delta.getHeight());
+                }
+
+                @Override
+                public void redo() {
+                    delta.apply(tileLayers[layer]);
+                    redrawRegion(layer, delta.getX(), delta.getY(), delta.getWidth(), delta.getHeight());
+                }
+
+                @Override
+                public long getByteSize() {
+                    return null == delta ? 0 : delta.getByteSize();
+                }
+
+                @Override
+                public void write(final DataOutput out) throws IOException {
+                    delta.write(out);
+                }
+
+                @Override
+                public void unload() {
+                    delta = null;
+                }
+
+                @Override
+                public void reload(final DataInput input) throws IOException {
+                    delta = TileDelta.read(input);
+                }
+            }
+
+            private final class UndoableMapReplaceEdit implements SpillableEdit {
+                //the replacement in each layer, or null for layers that had no tiles replaced. All null while spilled.
+                private final TileReplacement[] replacements;
 
-                    this.newTiles = new int[newTiles.length][newTiles[0].length];
-                    for (int i = 0; i < newTiles.length; ++i) {
-                        System.arraycopy(newTiles[i], 0, this.newTiles[i], 0, newTiles[i].length);
+                UndoableMapReplaceEdit(final TileReplacement[] replacements) {
+                    NullArgumentException.Companion.requireNonNull(replacements, "UndoableMapReplaceEdit", "replacements");
+                    if (tileLayers.length != replacements.length) {
+                        throw new IllegalArgumentException("Attempt to initialize new UndoableMapReplaceEdit " +
+                                                           "without a replacement for every layer " +
+                                                           "(replacements.length: " + replacements.length + ')');
                     }
+
+                    this.replacements = replacements.clone();
                 }
 
                 @Override
                 public void undo() {
-                    for (int y = this.y; y < this.y + oldTiles.length; ++y) {
-                        for (int x = this.x; x < this.x + oldTiles[y - this.y].length; ++x) {
-                            tileLayers[layer].setTile(x, y, oldTiles[y - this.y][x - this.x]);
-                            redrawTile(layer, x, y);
+                    for (int layer = 0; layer < replacements.length; ++layer) {
+                        final TileReplacement replacement = replacements[layer];
+                        if (null != replacement) {
+                            replacement.revert(tileLayers[layer]);
+                            redrawRegion(layer, replacement.getX(), replacement.getY(),
+                                         replacement.getWidth(), replacement.getHeight());
                         }
                     }
                 }
 
                 @Override
                 public void redo() {
-                    for (int y = this.y; y < this.y + newTiles.length; ++y) {
-                        for (int x = this.x; x < this.x + newTiles[y - this.y].length; ++x) {
-                            tileLayers[layer].setTile(x, y, newTiles[y - this.y][x - this.x]);
-                            redrawTile(layer, x, y);
+                    for (int layer = 0; layer < replacements.length; ++layer) {
+                        final TileReplacement replacement = replacements[layer];
+                        if (null != replacement) {
+                            replacement.apply(tileLayers[layer]);
+                            redrawRegion(layer, replacement.getX(), replacement.getY(),
+                                         replacement.getWidth(), replacement.getHeight());
                         }
                     }
                 }
-            }
 
-            private final class UndoableMapResizeEdit implements UndoableEdit {
-                //TODO: Instead, store one array of largest size (either pre or post-resize) as well as old and new dimensions
-                private final int layer;
-                private final int[][] oldTiles;
-                private final int[][] newTiles;
-
-                UndoableMapResizeEdit(final int layer, final int[][] oldTiles, final int[][] newTiles) {
-                    this.layer = layer;
-
-                    if (null == oldTiles || 0 == oldTiles.length || 0 == oldTiles[0].length) {
-                        this.oldTiles = null;
-                    }
-                    else {
-                        this.oldTiles = new int[oldTiles.length][oldTiles[0].length];
-                        for (int i = 0; i < oldTiles.length; ++i) {
-                            System.arraycopy(oldTiles[i], 0, this.oldTiles[i], 0, oldTiles[i].length);
+                @Override
+                public long getByteSize() {
+                    long bytes = 0;
+                    for (final TileReplacement replacement : replacements) {
+                        if (null != replacement) {
+                            bytes += replacement.getByteSize();
                         }
                     }
+                    return bytes;
+                }
 
-                    if (null == newTiles || 0 == newTiles.length || 0 == newTiles[0].length) {
-                        this.newTiles = null;
-                    }
-                    else {
-                        this.newTiles = new int[newTiles.length][newTiles[0].length];
-                        for (int i = 0; i < newTiles.length; ++i) {
-                            System.arraycopy(newTiles[i], 0, this.newTiles[i], 0, newTiles[i].length);
+                @Override
+                public void write(final DataOutput out) throws IOException {
+                    for (final TileReplacement replacement : replacements) {
+                        out.writeBoolean(null != replacement);
+                        if (null != replacement) {
+                            replacement.write(out);
                         }
                     }
                 }
 
                 @Override
-                public void undo() {
-                    if (null == oldTiles) {
-                        tileLayers[layer].resize(0, 0);
-                    }
-                    else {
-                        tileLayers[layer].resize(oldTiles[0].length, oldTiles.length);
-                        for (int y = 0; y < oldTiles.length; ++y) {
-                            for (int x = 0; x < oldTiles[y].length; ++x) {
-                                tileLayers[layer].setTile(x, y, oldTiles[y][x]);
-                            }
-                        }
+                public void unload() {
+                    Arrays.fill(replacements, null);
+                }
+
+                @Override
+                public void reload(final DataInput input) throws IOException {
+                    for (int i = 0; i < replacements.length; ++i) {
+                        replacements[i] = input.readBoolean() ? TileReplacement.read(input) : null;
                     }
+                }
+            }
 
-                    redrawTileLayer(layer);
-                    fixCanvasSizes();
-                    redrawTileLayer(layer);
+            private final class UndoableMapResizeEdit implements UndoableEdit {
+                private final int layer;
+                private final int newWidth;
+                private final int newHeight;
+
+                /*
+                 * Only holds the tiles cropped off by the resize - tiles that were kept
+                 * are shared with the layer. Replaced each time the resize is redone.
+                 */
+                private PxPack.TileLayerSnapshot snapshot;
+
+                UndoableMapResizeEdit(final int layer, final int newWidth, final int newHeight,
+                                      final PxPack.TileLayerSnapshot snapshot) {
+                    this.layer = layer;
+                    this.newWidth = newWidth;
+                    this.newHeight = newHeight;
+                    this.snapshot = NullArgumentException.Companion.requireNonNull(snapshot, "UndoableMapResizeEdit", "snapshot");
+                }
+
+                @Override
+                public void undo() {
+                    tileLayers[layer].restore(snapshot);
+
+                    redrawResizedLayer(layer);
                 }
 
                 @Override
                 public void redo() {
-                    if (null == newTiles) {
-                        tileLayers[layer].resize(0, 0);
-                    }
-                    else {
-                        tileLayers[layer].resize(newTiles[0].length, newTiles.length);
-                        for (int y = 0; y < newTiles.length; ++y) {
-                            for (int x = 0; x < newTiles[y].length; ++x) {
-                                tileLayers[layer].setTile(x, y, newTiles[y][x]);
-                            }
-                        }
-                    }
+                    snapshot = tileLayers[layer].resize(newWidth, newHeight);
 
-                    redrawTileLayer(layer);
-                    fixCanvasSizes();
-                    redrawTileLayer(layer);
+                    redrawResizedLayer(layer);
+                }
+
+                @Override
+                public long getByteSize() {
+                    return snapshot.getByteSize();
                 }
             }
         }
     }
 
+    /**
+     * Holds an image scaled by some amount, so that it is only scaled again when
+     * the image to scale or the amount to scale it by changes
+     */
+    private static final class ScaledImageCache {
+        private Image source;
+        private double scale;
+        private Image scaled;
+
+        /**
+         * Returns {@code source} scaled by {@code scale}, or null if {@code source} is null or has no pixels
+         */
+        Image get(final Image source, final double scale) {
+            if (null == source || null == source.getPixelReader()) {
+                return null;
+            }
+
+            if (source != this.source || scale != this.scale) {
+                scaled = FXUtil.INSTANCE.scale(source, scale);
+                this.source = source;
+                this.scale = scale;
+            }
+            return scaled;
+        }
+    }
+
     public enum DrawMode implements SafeEnum<DrawMode> {
         DRAW,
         RECT,
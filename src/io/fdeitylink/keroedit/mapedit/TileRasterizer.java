@@ -0,0 +1,112 @@
+package io.fdeitylink.keroedit.mapedit;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import io.fdeitylink.util.NullArgumentException;
+
+import io.fdeitylink.keroedit.image.TileTable;
+
+/**
+ * Draws grids of tiles out of a {@code TileTable} into a single image. The pixels of the new
+ * image are built in one {@code int[]} frame that is split into bands of rows of tiles and
+ * filled in parallel on the common {@code ForkJoinPool}, with each row of each tile copied
+ * straight out of the table. The frame is then written to the new image all at once.
+ */
+final class TileRasterizer {
+    //rows of tiles that a single task fills - splitting any further isn't worth the overhead
+    private static final int BAND_HEIGHT = 8;
+
+    private final TileTable table;
+
+    TileRasterizer(final TileTable table) {
+        this.table = NullArgumentException.Companion.requireNonNull(table, "TileRasterizer", "table");
+    }
+
+    /**
+     * Returns an image of {@code tiles}, in which the tile in row {@code y} and column {@code x}
+     * is drawn from tile {@code tiles[y][x]} of the table, or tile {@code remap[tiles[y][x]]}
+     * if {@code remap} is not null. Tiles with an index that is not in the table are left
+     * transparent.
+     *
+     * @throws IllegalArgumentException if {@code tiles} has no rows or columns
+     */
+    WritableImage rasterize(final int[][] tiles, final int[] remap) {
+        NullArgumentException.Companion.requireNonNull(tiles, "rasterize", "tiles");
+        if (0 == tiles.length || 0 == tiles[0].length) {
+            throw new IllegalArgumentException("Attempt to rasterize empty grid of tiles");
+        }
+
+        final int frameWidth = tiles[0].length * table.getTileWidth();
+        final int frameHeight = tiles.length * table.getTileHeight();
+        final int[] frame = new int[frameWidth * frameHeight];
+
+        ForkJoinPool.commonPool().invoke(new Band(tiles, remap, frame, frameWidth, 0, tiles.length));
+
+        final WritableImage image = new WritableImage(frameWidth, frameHeight);
+        image.getPixelWriter().setPixels(0, 0, frameWidth, frameHeight, PixelFormat.getIntArgbPreInstance(),
+                                         frame, 0, frameWidth);
+        return image;
+    }
+
+    private final class Band extends RecursiveAction {
+        private final int[][] tiles;
+        private final int[] remap;
+
+        private final int[] frame;
+        private final int frameWidth;
+
+        private final int fromRow;
+        private final int toRow;
+
+        Band(final int[][] tiles, final int[] remap, final int[] frame, final int frameWidth,
+             final int fromRow, final int toRow) {
+            this.tiles = tiles;
+            this.remap = remap;
+            this.frame = frame;
+            this.frameWidth = frameWidth;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > BAND_HEIGHT) {
+                final int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new Band(tiles, remap, frame, frameWidth, fromRow, middle),
+                          new Band(tiles, remap, frame, frameWidth, middle, toRow));
+                return;
+            }
+
+            final int[] tablePixels = table.getPixels();
+            final int tileWidth = table.getTileWidth();
+            final int tileHeight = table.getTileHeight();
+            final int tileArea = table.getTileArea();
+            final int numTiles = table.getNumTiles();
+
+            for (int y = fromRow; y < toRow; ++y) {
+                final int[] row = tiles[y];
+                for (int x = 0; x < row.length; ++x) {
+                    int tile = row[x];
+                    if (null != remap) {
+                        tile = tile < remap.length ? remap[tile] : -1;
+                    }
+                    if (tile < 0 || numTiles <= tile) {
+                        continue;
+                    }
+
+                    int src = tile * tileArea;
+                    int dest = (y * tileHeight * frameWidth) + (x * tileWidth);
+                    for (int i = 0; i < tileHeight; ++i) {
+                        System.arraycopy(tablePixels, src, frame, dest, tileWidth);
+                        src += tileWidth;
+                        dest += frameWidth;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.nio.file.Files
 
 import java.io.IOException
 
+import java.nio.CharBuffer
+
 import java.nio.charset.Charset
 
 import java.util.stream.Collectors
@@ -20,6 +22,8 @@ import io.fdeitylink.util.baseFilename
 
 import io.fdeitylink.util.use
 
+import io.fdeitylink.util.AtomicFileBatch
+
 import io.fdeitylink.util.fx.FXUtil
 import io.fdeitylink.util.fx.FileEditTab
 
@@ -94,8 +98,10 @@ class ScriptEditTab
 
     override fun save() {
         try {
-            Files.write(path, textArea.paragraphs, Charset.forName("Shift_JIS"))
-            markUnchanged()
+            AtomicFileBatch().use {
+                save(it)
+                it.commit()
+            }
         }
         catch (except: IOException) {
             FXUtil.createAlert(type = Alert.AlertType.ERROR, title = Messages["ScriptEditTab.Save.IOExcept.TITLE"],
@@ -104,6 +110,16 @@ class ScriptEditTab
         }
     }
 
+    @Throws(IOException::class)
+    override fun save(batch: AtomicFileBatch) {
+        //same as Files.write(path, lines, charset) - every line followed by a separator, unmappable characters are errors
+        val text = StringBuilder()
+        textArea.paragraphs.forEach { text.append(it).append(System.lineSeparator()) }
+
+        batch.write(path, Charset.forName("Shift_JIS").newEncoder().encode(CharBuffer.wrap(text)))
+        batch.onCommit(Runnable { markUnchanged() })
+    }
+
     override fun markChanged() {
         super.markChanged()
         parent?.markChanged()
@@ -0,0 +1,444 @@
+package io.fdeitylink.util
+
+import java.io.IOException
+
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.EOFException
+
+import java.nio.ByteBuffer
+
+import java.nio.channels.FileChannel
+
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadLocalRandom
+
+import java.util.zip.CRC32
+
+/**
+ * Writes the contents of a file to a [FileChannel]
+ */
+interface ChannelWriter {
+    @Throws(IOException::class)
+    fun write(chan: FileChannel)
+}
+
+/**
+ * Makes changes to a file through a [FilePatch]
+ */
+interface PatchWriter {
+    @Throws(IOException::class)
+    fun write(patch: FilePatch)
+}
+
+/**
+ * The changes to be made to a file by [AtomicFileBatch.patch]. Rather than being made right away, each
+ * change is recorded in a journal, which is only put in place and then replayed onto the file by
+ * [AtomicFileBatch.commit]. The journal holds everything needed to finish the changes, so if the replay
+ * is cut off, [AtomicFiles.recover] finishes it.
+ *
+ * Journal format: each change is a type byte, followed by a position and, for a write, a length and the
+ * bytes written. A type byte of 0 and the CRC-32 of everything before it end the journal.
+ */
+class FilePatch internal constructor(private val chan: FileChannel) {
+    private val crc = CRC32()
+
+    /**
+     * Writes the remaining bytes of [data] at [position] in the file, growing it if need be
+     */
+    @Throws(IOException::class)
+    fun write(position: Long, data: ByteBuffer) {
+        require(0 <= position) { "Attempt to write to negative position (position: $position)" }
+
+        val header = ByteBuffer.allocate(13).put(WRITE).putLong(position).putInt(data.remaining())
+        header.flip()
+        append(header)
+        append(data)
+    }
+
+    /**
+     * Cuts the file down to [size] bytes
+     */
+    @Throws(IOException::class)
+    fun truncate(size: Long) {
+        require(0 <= size) { "Attempt to truncate to negative size (size: $size)" }
+
+        val record = ByteBuffer.allocate(9).put(TRUNCATE).putLong(size)
+        record.flip()
+        append(record)
+    }
+
+    internal fun finish() {
+        append(ByteBuffer.wrap(byteArrayOf(END)))
+        val buf = ByteBuffer.allocate(4).putInt(crc.value.toInt())
+        buf.flip()
+        while (buf.hasRemaining()) {
+            chan.write(buf)
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of [buf] to the journal
+     */
+    private fun append(buf: ByteBuffer) {
+        crc.update(buf.duplicate())
+        while (buf.hasRemaining()) {
+            chan.write(buf)
+        }
+    }
+
+    internal companion object {
+        const val END: Byte = 0
+        const val WRITE: Byte = 1
+        const val TRUNCATE: Byte = 2
+
+        /**
+         * Returns the journal of changes to [target] waiting to be replayed onto it
+         */
+        fun journalOf(target: Path): Path = target.resolveSibling(".${target.fileName}.journal")
+
+        /**
+         * Replays [journal] onto [target] and deletes it, or just deletes it if it is incomplete
+         */
+        @Throws(IOException::class)
+        fun replay(journal: Path, target: Path) {
+            if (isComplete(journal)) {
+                FileChannel.open(target, StandardOpenOption.WRITE).use { chan ->
+                    DataInputStream(BufferedInputStream(Files.newInputStream(journal))).use { input ->
+                        replay@ while (true) {
+                            when (input.readByte()) {
+                                WRITE -> {
+                                    var position = input.readLong()
+                                    val data = ByteArray(input.readInt())
+                                    input.readFully(data)
+
+                                    val buf = ByteBuffer.wrap(data)
+                                    while (buf.hasRemaining()) {
+                                        position += chan.write(buf, position)
+                                    }
+                                }
+                                TRUNCATE -> chan.truncate(input.readLong())
+                                else -> break@replay
+                            }
+                        }
+                    }
+                    chan.force(true)
+                }
+            }
+
+            Files.delete(journal)
+        }
+
+        /**
+         * Returns true if [journal] was written out in full, i.e. it ends with the CRC-32 of the rest of it
+         */
+        private fun isComplete(journal: Path): Boolean {
+            val crc = CRC32()
+            val header = ByteBuffer.allocate(13)
+            val data = ByteArray(1 shl 16)
+
+            try {
+                DataInputStream(BufferedInputStream(Files.newInputStream(journal))).use { input ->
+                    var type = input.readByte()
+                    while (END != type) {
+                        header.clear()
+                        header.put(type)
+                        when (type) {
+                            WRITE -> {
+                                header.putLong(input.readLong())
+                                var left = input.readInt()
+                                if (0 > left) {
+                                    return false
+                                }
+                                header.putInt(left)
+                                crc.update(header.array(), 0, header.position())
+
+                                while (0 < left) {
+                                    val n = minOf(left, data.size)
+                                    input.readFully(data, 0, n)
+                                    crc.update(data, 0, n)
+                                    left -= n
+                                }
+                            }
+                            TRUNCATE -> {
+                                header.putLong(input.readLong())
+                                crc.update(header.array(), 0, header.position())
+                            }
+                            else -> return false
+                        }
+                        type = input.readByte()
+                    }
+
+                    crc.update(END.toInt())
+                    return crc.value.toInt() == input.readInt() && -1 == input.read()
+                }
+            }
+            catch (except: EOFException) {
+                return false
+            }
+        }
+    }
+}
+
+/**
+ * Convenience methods for writing a single file with an [AtomicFileBatch]
+ */
+object AtomicFiles {
+    /**
+     * Finishes any change to [target] made by [AtomicFileBatch.patch] that was cut off partway, e.g. by a crash.
+     * Anything that reads a file that may have been patched should call this first.
+     */
+    @Throws(IOException::class)
+    fun recover(target: Path) {
+        val absTarget = target.toAbsolutePath()
+        val journal = FilePatch.journalOf(absTarget)
+        if (Files.exists(journal)) {
+            FilePatch.replay(journal, absTarget)
+        }
+    }
+
+    /**
+     * Replaces the contents of [target] with the remaining bytes of [data] such that
+     * a crash at any point leaves either the old file or the new file, never a mix
+     */
+    @Throws(IOException::class)
+    fun write(target: Path, data: ByteBuffer) {
+        AtomicFileBatch().use {
+            it.write(target, data)
+            it.commit()
+        }
+    }
+
+    /**
+     * Replaces the contents of [target] with whatever [writer] writes, such that a
+     * crash at any point leaves either the old file or the new file, never a mix
+     */
+    @Throws(IOException::class)
+    fun write(target: Path, writer: ChannelWriter) {
+        AtomicFileBatch().use {
+            it.write(target, writer)
+            it.commit()
+        }
+    }
+}
+
+/**
+ * A set of files to be replaced together. Each file's new contents are written to a temporary
+ * file next to it, and nothing is replaced until [commit] is called. [commit] forces every
+ * temporary file to disk, then moves each one over its target with an atomic move, so no target
+ * is ever left half-written. If anything fails before the moves, no target is touched at all.
+ *
+ * Files can instead be [patch]ed, in which case only a journal of the changes is written ahead of
+ * [commit], which puts the journal in place with an atomic move and then makes the changes to the
+ * file itself. Until the journal is deleted, the file may be half-patched, but [AtomicFiles.recover]
+ * can always finish it from the journal.
+ *
+ * Closing a batch that was not committed deletes its temporary files.
+ */
+class AtomicFileBatch : AutoCloseable {
+    //temp holds the journal rather than the new contents if patch is true
+    private class Staged(val target: Path, val temp: Path, val patch: Boolean)
+
+    private val staged = mutableListOf<Staged>()
+    private val commitActions = mutableListOf<Runnable>()
+
+    private var committed = false
+
+    /**
+     * Stages the remaining bytes of [data] as the new contents of [target]. The bytes are
+     * written out before this returns, so [data] may be reused afterwards.
+     */
+    @Throws(IOException::class)
+    fun write(target: Path, data: ByteBuffer) {
+        write(target, object : ChannelWriter {
+            override fun write(chan: FileChannel) {
+                while (data.hasRemaining()) {
+                    chan.write(data)
+                }
+            }
+        })
+    }
+
+    /**
+     * Stages whatever [writer] writes to an empty file as the new contents of [target]
+     */
+    @Throws(IOException::class)
+    fun write(target: Path, writer: ChannelWriter) {
+        val (absTarget, temp) = stage(target, false)
+        setPermissions(temp, absTarget)
+        FileChannel.open(temp, StandardOpenOption.WRITE).use { writer.write(it) }
+    }
+
+    /**
+     * Stages the changes [writer] makes to [target], which must exist, to be made to it in place. This
+     * lets a small change to a large file be made safely without writing the whole file again.
+     */
+    @Throws(IOException::class)
+    fun patch(target: Path, writer: PatchWriter) {
+        val (_, temp) = stage(target, true)
+        FileChannel.open(temp, StandardOpenOption.WRITE).use {
+            val patch = FilePatch(it)
+            writer.write(patch)
+            patch.finish()
+        }
+    }
+
+    /**
+     * Adds an action to run once every file in this batch has been replaced, such as marking
+     * the objects that were saved as unchanged. Actions are not run if the commit fails.
+     */
+    fun onCommit(action: Runnable) {
+        commitActions.add(action)
+    }
+
+    /**
+     * Forces every staged file to disk, concurrently, and then moves each one over its target, or
+     * for patches, moves each journal into place and then replays it onto its target
+     *
+     * @throws IOException if any staged file could not be forced or moved, or a patch could not be made.
+     * If it happened while forcing, no target was replaced. Otherwise, the files before the failed one were
+     * replaced, and a patch that failed partway is finished by the next call to [AtomicFiles.recover].
+     */
+    @Throws(IOException::class)
+    fun commit() {
+        check(!committed) { "Attempt to commit an AtomicFileBatch that was already committed" }
+
+        forceAll()
+
+        for (s in staged) {
+            if (s.patch) {
+                val journal = FilePatch.journalOf(s.target)
+                move(s.temp, journal)
+                FilePatch.replay(journal, s.target)
+            }
+            else {
+                move(s.temp, s.target)
+            }
+        }
+
+        committed = true
+        staged.clear()
+
+        commitActions.forEach(Runnable::run)
+        commitActions.clear()
+    }
+
+    /**
+     * Deletes any temporary files left by a batch that was never committed
+     */
+    override fun close() {
+        for (s in staged) {
+            try {
+                Files.deleteIfExists(s.temp)
+            }
+            catch (except: IOException) {
+                Logger.logThrowable("Exception when attempting to delete temporary file ${s.temp}", except)
+            }
+        }
+        staged.clear()
+        commitActions.clear()
+    }
+
+    /**
+     * Creates and stages the temporary file for [target], first finishing any earlier patch to [target]
+     * so that its journal can't later be replayed over what this batch writes
+     */
+    private fun stage(target: Path, patch: Boolean): Pair<Path, Path> {
+        check(!committed) { "Attempt to add a file to an AtomicFileBatch that was already committed" }
+
+        val absTarget = target.toAbsolutePath()
+        AtomicFiles.recover(absTarget)
+
+        val temp = createTemp(absTarget)
+        staged.add(Staged(absTarget, temp, patch))
+        return Pair(absTarget, temp)
+    }
+
+    private fun setPermissions(temp: Path, target: Path) {
+        if (Files.exists(target)) {
+            try {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target))
+            }
+            catch (except: UnsupportedOperationException) {
+                //not a POSIX file system, so there are no permissions to carry over
+            }
+        }
+    }
+
+    private fun move(source: Path, target: Path) {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE)
+        }
+        catch (except: AtomicMoveNotSupportedException) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+
+    /**
+     * Creates an empty temporary file next to [target]. It must be on the same file store as [target] for
+     * the move to be atomic. [Files.createTempFile] is not used because it creates files readable only by
+     * their owner, which a newly created target would end up with.
+     */
+    private fun createTemp(target: Path): Path {
+        while (true) {
+            val name = ".${target.fileName}.${java.lang.Long.toHexString(ThreadLocalRandom.current().nextLong())}.tmp"
+            try {
+                return Files.createFile(target.resolveSibling(name))
+            }
+            catch (except: FileAlreadyExistsException) {
+                //try another name
+            }
+        }
+    }
+
+    private fun forceAll() {
+        if (1 >= staged.size) {
+            staged.forEach { force(it.temp) }
+            return
+        }
+
+        val pool = Executors.newFixedThreadPool(minOf(staged.size, Runtime.getRuntime().availableProcessors())) {
+            val thread = Thread(it, "AtomicFileBatch")
+            thread.isDaemon = true
+            thread
+        }
+
+        try {
+            val futures = pool.invokeAll(staged.map { Callable { force(it.temp) } })
+
+            var failure: IOException? = null
+            for (future in futures) {
+                try {
+                    future.get()
+                }
+                catch (except: ExecutionException) {
+                    val cause = except.cause as? IOException ?: throw except.cause ?: except
+
+                    val first = failure
+                    if (null == first) {
+                        failure = cause
+                    }
+                    else {
+                        first.addSuppressed(cause)
+                    }
+                }
+            }
+
+            failure?.let { throw it }
+        }
+        finally {
+            pool.shutdownNow()
+        }
+    }
+
+    private fun force(file: Path) = FileChannel.open(file, StandardOpenOption.WRITE).use { it.force(true) }
+}
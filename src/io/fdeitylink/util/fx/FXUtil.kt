@@ -31,12 +31,9 @@ import javafx.scene.control.Dialog
 import javafx.scene.control.Alert
 import javafx.scene.control.ButtonType
 
-import javafx.embed.swing.SwingFXUtils
 import javafx.scene.image.Image
-
-import java.awt.image.BufferedImage
-import java.awt.geom.AffineTransform
-import java.awt.image.AffineTransformOp
+import javafx.scene.image.WritableImage
+import javafx.scene.image.PixelFormat
 
 import javafx.scene.paint.Color
 
@@ -44,6 +41,17 @@ import javafx.concurrent.Service
 import javafx.concurrent.Task
 
 object FXUtil {
+    /*
+     * Pixel buffers reused by scale(), one pair per thread since images are
+     * scaled both on the JavaFX thread and in background Tasks. They grow up to
+     * MAX_REUSED_BUFFER_SIZE ints; anything bigger is allocated for the one call,
+     * so that a single huge scale doesn't stay reachable for the life of its thread.
+     */
+    private const val MAX_REUSED_BUFFER_SIZE = 1 shl 20
+
+    private val scaleSrcBuffer = ThreadLocal.withInitial { IntArray(0) }
+    private val scaleDestBuffer = ThreadLocal.withInitial { IntArray(0) }
+
     /**
      * Returns a [Task] that calls [callable.call][Callable.call] in its [Task.call] method.
      */
@@ -256,6 +264,10 @@ object FXUtil {
      * are 0, or [scale] is `1.0`, otherwise the result of scaling the
      * receiving [Image] by [scale]. If the receiver is a nullable type,
      * then the return value is nullable, otherwise it is non-nullable.
+     *
+     * Scaling uses nearest-neighbour sampling and is done directly on the pixels of the
+     * [Image]. Whole number scales, which is what zooming almost always uses, take a
+     * faster path that widens each row once and then copies it for the rest of its rows.
      */
     fun <T : Image?> T.scale(scale: Double): T {
         if (null == this || 1.0 == scale) {
@@ -269,14 +281,71 @@ object FXUtil {
             return this
         }
 
-        val dest = BufferedImage((srcWidth * scale).toInt(), (srcHeight * scale).toInt(), BufferedImage.TYPE_INT_ARGB)
-        val src = SwingFXUtils.fromFXImage(this, null)
+        val reader = pixelReader ?: return this
+
+        val destWidth = (srcWidth * scale).toInt()
+        val destHeight = (srcHeight * scale).toInt()
+        require(destWidth > 0 && destHeight > 0) {
+            "Attempt to scale an image to an empty image (width: $srcWidth, height: $srcHeight, scale: $scale)"
+        }
+
+        val format = PixelFormat.getIntArgbPreInstance()
+
+        val src = buffer(scaleSrcBuffer, srcWidth * srcHeight)
+        reader.getPixels(0, 0, srcWidth, srcHeight, format, src, 0, srcWidth)
 
-        val trans = AffineTransform()
-        trans.scale(scale, scale)
-        AffineTransformOp(trans, AffineTransformOp.TYPE_NEAREST_NEIGHBOR).filter(src, dest)
+        val dest = buffer(scaleDestBuffer, destWidth * destHeight)
+
+        val factor = scale.toInt()
+        if (factor.toDouble() == scale) {
+            for (y in 0 until srcHeight) {
+                val srcRow = y * srcWidth
+                val destRow = y * factor * destWidth
+
+                var destIndex = destRow
+                for (x in 0 until srcWidth) {
+                    val pixel = src[srcRow + x]
+                    for (i in 0 until factor) {
+                        dest[destIndex++] = pixel
+                    }
+                }
+
+                for (i in 1 until factor) {
+                    System.arraycopy(dest, destRow, dest, destRow + (i * destWidth), destWidth)
+                }
+            }
+        }
+        else {
+            //each destination pixel takes the source pixel under its center
+            val srcXs = IntArray(destWidth) { minOf(srcWidth - 1, ((it + 0.5) / scale).toInt()) }
+            for (y in 0 until destHeight) {
+                val srcRow = minOf(srcHeight - 1, ((y + 0.5) / scale).toInt()) * srcWidth
+                val destRow = y * destWidth
+                for (x in 0 until destWidth) {
+                    dest[destRow + x] = src[srcRow + srcXs[x]]
+                }
+            }
+        }
+
+        val scaled = WritableImage(destWidth, destHeight)
+        scaled.pixelWriter.setPixels(0, 0, destWidth, destHeight, format, dest, 0, destWidth)
 
         @Suppress("UNCHECKED_CAST")
-        return SwingFXUtils.toFXImage(dest, null) as T
+        return scaled as T
+    }
+
+    /**
+     * Returns the array held by [local] if it holds at least [size] ints, otherwise a new one,
+     * which replaces it unless it is bigger than [MAX_REUSED_BUFFER_SIZE]
+     */
+    private fun buffer(local: ThreadLocal<IntArray>, size: Int): IntArray {
+        var buf = local.get()
+        if (buf.size < size) {
+            buf = IntArray(size)
+            if (size <= MAX_REUSED_BUFFER_SIZE) {
+                local.set(buf)
+            }
+        }
+        return buf
     }
 }
\ No newline at end of file
@@ -10,6 +10,8 @@ package io.fdeitylink.util.fx
 
 import java.util.ArrayDeque
 
+import java.io.IOException
+
 import java.nio.file.Path
 import java.nio.file.Files
 
@@ -23,6 +25,8 @@ import javafx.scene.control.ButtonType
 import javafx.scene.control.Tab
 import javafx.scene.control.Tooltip
 
+import io.fdeitylink.util.AtomicFileBatch
+
 
 abstract class FileEditTab
 @JvmOverloads protected constructor(path: Path, text: String? = null, content: Node? = null): Tab(text, content) {
@@ -42,6 +46,14 @@ abstract class FileEditTab
     var isChanged = false
         private set
 
+    /**
+     * Tabs nested within this one that keep undo histories of their own. Their histories are
+     * released from [UndoHistory] along with this tab's once this tab is removed from its TabPane,
+     * as they usually never leave theirs.
+     */
+    protected open val childTabs: List<FileEditTab>
+        get() = emptyList()
+
     init {
         require(Files.isRegularFile(path)) { "${this.path} is not a file" }
 
@@ -64,28 +76,52 @@ abstract class FileEditTab
                 }
             }
         }
+
+        //tabs are sometimes removed from their TabPane directly rather than closed, so onClosed can't be relied on
+        tabPaneProperty().addListener { _, _, newValue ->
+            if (null == newValue) {
+                releaseHistory()
+            }
+        }
+    }
+
+    private fun releaseHistory() {
+        UndoHistory.release(this)
+        childTabs.forEach { it.releaseHistory() }
     }
 
     open fun undo() {
-        if (!undoQueue.isEmpty()) {
+        val edit = undoQueue.peekFirst() ?: return
+        if (UndoHistory.load(edit)) {
             markChanged()
-            val edit = undoQueue.removeFirst()
+            undoQueue.removeFirst()
             redoQueue.addFirst(edit)
             edit.undo()
+            UndoHistory.used(edit)
         }
     }
 
     open fun redo() {
-        if (!redoQueue.isEmpty()) {
+        val edit = redoQueue.peekFirst() ?: return
+        if (UndoHistory.load(edit)) {
             markChanged()
-            val edit = redoQueue.removeFirst()
+            redoQueue.removeFirst()
             undoQueue.addFirst(edit)
             edit.redo()
+            UndoHistory.used(edit)
         }
     }
 
     abstract fun save()
 
+    /**
+     * Stages this tab's files in [batch] rather than writing them right away, so that they are
+     * replaced together with the rest of the batch when it is committed. Tabs should only mark
+     * themselves unchanged from an [AtomicFileBatch.onCommit] action. By default this just calls [save].
+     */
+    @Throws(IOException::class)
+    open fun save(batch: AtomicFileBatch) = save()
+
     protected open fun markChanged() {
         if (!isChanged) {
             isChanged = true
@@ -106,7 +142,28 @@ abstract class FileEditTab
 
     protected fun addUndo(edit: UndoableEdit) {
         markChanged()
+        UndoHistory.removed(redoQueue)
         redoQueue.clear()
         undoQueue.addFirst(edit)
+        UndoHistory.added(this, edit)
+    }
+
+    /**
+     * Drops [edit] from this tab's history along with every edit that could only be reached by undoing
+     * or redoing past it, i.e. every edit older than it if it can be undone, or every edit newer than it
+     * if it can be redone
+     *
+     * @return the dropped edits
+     */
+    internal fun discardThrough(edit: UndoableEdit): List<UndoableEdit> {
+        val queue = if (undoQueue.contains(edit)) undoQueue else if (redoQueue.contains(edit)) redoQueue else return emptyList()
+
+        //the furthest edits from the current state are at the end of each queue
+        val dropped = mutableListOf<UndoableEdit>()
+        do {
+            val last = queue.removeLast()
+            dropped.add(last)
+        } while (last !== edit)
+        return dropped
     }
 }
\ No newline at end of file
@@ -0,0 +1,278 @@
+package io.fdeitylink.util.fx
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+
+import java.nio.ByteBuffer
+
+import java.nio.channels.FileChannel
+
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
+import io.fdeitylink.util.Logger
+
+/**
+ * Keeps the undo and redo histories of every [FileEditTab] within a single memory budget. Edits are tracked
+ * from least to most recently used, where adding, undoing, and redoing an edit all count as using it. Whenever
+ * the edits held in memory add up to more than [memoryBudget], the least recently used ones are dealt with
+ * according to [overflowPolicy] until they fit again. The most recently used edit is never touched.
+ *
+ * Spilled edits are written to a journal file that is deleted on [close], and are read back the next time they
+ * are undone or redone, so tabs never notice that they were spilled. Edits that are not [SpillableEdit]s stay in
+ * memory when spilling.
+ *
+ * Must only be used from the JavaFX Application thread.
+ */
+object UndoHistory {
+    enum class OverflowPolicy {
+        /**
+         * Writes edits out to the journal
+         */
+        SPILL,
+
+        /**
+         * Drops edits, along with every edit in the same tab that could only be reached by undoing or redoing past them
+         */
+        DISCARD
+    }
+
+    var memoryBudget = Runtime.getRuntime().maxMemory() / 4
+        set(value) {
+            require(value >= 0) { "Attempt to set memory budget to negative value (value: $value)" }
+            field = value
+            trim()
+        }
+
+    var overflowPolicy = OverflowPolicy.SPILL
+        set(value) {
+            field = value
+            trim()
+        }
+
+    /**
+     * How many bytes the edits held in memory take up, roughly
+     */
+    var inMemoryByteSize = 0L
+        private set
+
+    /**
+     * How many bytes of the journal are taken up by spilled edits
+     */
+    val journalByteSize
+        get() = journal?.liveBytes ?: 0L
+
+    private class Entry(val tab: FileEditTab, var byteSize: Long) {
+        var record: Journal.Record? = null
+    }
+
+    //access ordered, so iteration goes from least to most recently used
+    private val entries = LinkedHashMap<UndoableEdit, Entry>(16, 0.75f, true)
+
+    private var mostRecent: UndoableEdit? = null
+
+    private var journal: Journal? = null
+
+    internal fun added(tab: FileEditTab, edit: UndoableEdit) {
+        val entry = Entry(tab, edit.byteSize)
+        entries.put(edit, entry)?.let { forget(it) }
+        inMemoryByteSize += entry.byteSize
+        mostRecent = edit
+        trim()
+    }
+
+    /**
+     * Reads [edit] back in if it was spilled, ahead of it being undone or redone
+     *
+     * @return false if [edit] was spilled and could not be read back in, in which case it has
+     * been discarded as per [OverflowPolicy.DISCARD] and must not be undone or redone
+     */
+    internal fun load(edit: UndoableEdit): Boolean {
+        val entry = entries[edit] ?: return true
+        mostRecent = edit
+
+        val record = entry.record ?: return true
+        val journal = this.journal
+        try {
+            if (null == journal) {
+                throw IOException("Attempt to reload spilled edit after undo journal was closed")
+            }
+            journal.read(record, edit as SpillableEdit)
+        }
+        catch (except: IOException) {
+            Logger.logThrowable("Exception when attempting to reload spilled edit", except)
+            discard(edit, entry)
+            return false
+        }
+
+        journal.free(record)
+        entry.record = null
+        entry.byteSize = edit.byteSize
+        inMemoryByteSize += entry.byteSize
+        return true
+    }
+
+    /**
+     * Updates the size of [edit] after it was undone or redone, as that may have changed it
+     */
+    internal fun used(edit: UndoableEdit) {
+        val entry = entries[edit] ?: return
+        if (null == entry.record) {
+            inMemoryByteSize += edit.byteSize - entry.byteSize
+            entry.byteSize = edit.byteSize
+        }
+        trim()
+    }
+
+    internal fun removed(edits: Iterable<UndoableEdit>) {
+        for (edit in edits) {
+            entries.remove(edit)?.let { forget(it) }
+        }
+    }
+
+    /**
+     * Forgets every edit from [tab], e.g. once it has been closed
+     */
+    internal fun release(tab: FileEditTab) {
+        val iter = entries.values.iterator()
+        while (iter.hasNext()) {
+            val entry = iter.next()
+            if (tab === entry.tab) {
+                iter.remove()
+                forget(entry)
+            }
+        }
+    }
+
+    /**
+     * Deletes the journal. Spilled edits that are still around can no longer be read back in afterwards.
+     */
+    fun close() {
+        try {
+            journal?.close()
+        }
+        catch (except: IOException) {
+            Logger.logThrowable("Exception when attempting to close undo journal", except)
+        }
+        journal = null
+    }
+
+    private fun forget(entry: Entry) {
+        val record = entry.record
+        if (null == record) {
+            inMemoryByteSize -= entry.byteSize
+        }
+        else {
+            journal?.free(record)
+        }
+    }
+
+    private fun trim() {
+        if (inMemoryByteSize <= memoryBudget) {
+            return
+        }
+
+        when (overflowPolicy) {
+            OverflowPolicy.SPILL -> {
+                //spilling doesn't add or remove entries, so it is safe to do while iterating
+                for ((edit, entry) in entries) {
+                    if (inMemoryByteSize <= memoryBudget) {
+                        break
+                    }
+                    if (edit === mostRecent || null != entry.record || edit !is SpillableEdit) {
+                        continue
+                    }
+
+                    try {
+                        spill(edit, entry)
+                    }
+                    catch (except: IOException) {
+                        Logger.logThrowable("Exception when attempting to spill edit", except)
+                        return
+                    }
+                }
+            }
+            OverflowPolicy.DISCARD -> {
+                while (inMemoryByteSize > memoryBudget) {
+                    val victim = entries.entries.firstOrNull { it.key !== mostRecent && null == it.value.record } ?: break
+                    discard(victim.key, victim.value)
+                }
+            }
+        }
+    }
+
+    private fun spill(edit: SpillableEdit, entry: Entry) {
+        val journal = this.journal ?: Journal().also { this.journal = it }
+        entry.record = journal.write(edit)
+        edit.unload()
+        inMemoryByteSize -= entry.byteSize
+    }
+
+    private fun discard(edit: UndoableEdit, entry: Entry) {
+        removed(entry.tab.discardThrough(edit))
+    }
+
+    /**
+     * An append-only temporary file of spilled edits. Space is only reclaimed
+     * once every edit in it has been read back or forgotten.
+     */
+    private class Journal : AutoCloseable {
+        class Record(val position: Long, val length: Int)
+
+        private val chan: FileChannel
+
+        var liveBytes = 0L
+            private set
+
+        init {
+            val path = Files.createTempFile("keroedit-undo", ".journal")
+            chan = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                    StandardOpenOption.DELETE_ON_CLOSE)
+            path.toFile().deleteOnExit()
+        }
+
+        fun write(edit: SpillableEdit): Record {
+            val bytes = ByteArrayOutputStream()
+            DataOutputStream(bytes).use { edit.write(it) }
+
+            val buf = ByteBuffer.wrap(bytes.toByteArray())
+            val position = chan.size()
+            while (buf.hasRemaining()) {
+                chan.write(buf, position + buf.position())
+            }
+
+            liveBytes += buf.limit()
+            return Record(position, buf.limit())
+        }
+
+        fun read(record: Record, edit: SpillableEdit) {
+            val buf = ByteBuffer.allocate(record.length)
+            while (buf.hasRemaining()) {
+                if (0 > chan.read(buf, record.position + buf.position())) {
+                    throw EOFException("Attempt to read spilled edit past end of journal " +
+                                       "(position: ${record.position}, length: ${record.length})")
+                }
+            }
+
+            DataInputStream(ByteArrayInputStream(buf.array())).use { edit.reload(it) }
+        }
+
+        fun free(record: Record) {
+            liveBytes -= record.length
+            if (0L == liveBytes) {
+                try {
+                    chan.truncate(0)
+                }
+                catch (except: IOException) {
+                    Logger.logThrowable("Exception when attempting to truncate undo journal", except)
+                }
+            }
+        }
+
+        override fun close() = chan.close()
+    }
+}
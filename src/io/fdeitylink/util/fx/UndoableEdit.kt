@@ -1,7 +1,40 @@
 package io.fdeitylink.util.fx
 
+import java.io.IOException
+
+import java.io.DataInput
+import java.io.DataOutput
+
 interface UndoableEdit {
     fun undo()
 
     fun redo()
-}
\ No newline at end of file
+
+    /**
+     * Roughly how many bytes of memory this edit holds on to in order to be undone and redone
+     */
+    val byteSize: Long
+}
+
+/**
+ * An [UndoableEdit] whose data can be written out of memory while it is not needed and read back
+ * before it is next undone or redone. [UndoHistory] takes care of calling these methods.
+ */
+interface SpillableEdit : UndoableEdit {
+    /**
+     * Writes everything this edit needs to be undone and redone to [out]
+     */
+    @Throws(IOException::class)
+    fun write(out: DataOutput)
+
+    /**
+     * Lets go of everything written by [write], so that [byteSize] is next to nothing
+     */
+    fun unload()
+
+    /**
+     * Reads back what [write] wrote from [input]
+     */
+    @Throws(IOException::class)
+    fun reload(input: DataInput)
+}